@@ -0,0 +1,113 @@
+package jlox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The Lox programs every benchmark runs against. Each program is scanned and
+ * parsed once per trial so that a benchmark only measures its own phase.
+ */
+@State(Scope.Benchmark)
+public class Corpus {
+    @Param({"fibonacci", "nesting", "strings", "literals", "documented"})
+    public String program;
+
+    String source;
+    List<Token> tokens;
+    List<Statement> statements;
+    int slots;
+
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void load() {
+        if (program.equals("literals")) {
+            source = literalTable(4000);
+        } else if (program.equals("documented")) {
+            source = documented(1000);
+        } else {
+            source = resource(program + ".lox");
+        }
+        // Character at a time, so that ScannerBenchmark's scalar runs do
+        // not also carry the JIT profile of the vectorized paths.
+        tokens = new Scanner(source, false).scanTokens();
+        statements = new RecursiveParser(tokens).parse();
+        if (Lox.hadError) {
+            throw new IllegalStateException("Benchmark program " + program + " does not parse.");
+        }
+        slots = new Resolver().resolve(statements);
+
+        // The interpreter prints straight to System.out; keep that out of the measurement.
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void restore() {
+        System.setOut(stdout);
+    }
+
+    /**
+     * A large generated table of number and string literals, the shape of the
+     * lookup tables our scripts declare up front.
+     */
+    static String literalTable(int rows) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < rows; i++) {
+            builder.append("var key_").append(i).append(" = \"entry number ").append(i).append("\";\n");
+            builder.append("var value_").append(i).append(" = ").append(i).append('.').append(i % 97).append(";\n");
+        }
+        builder.append("print value_").append(rows - 1).append(";\n");
+        return builder.toString();
+    }
+
+    /**
+     * Many small functions under long doc comments, with indented bodies,
+     * trailing comments and long messages: mostly text the scanner skips.
+     */
+    static String documented(int functions) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < functions; i++) {
+            builder.append("/*\n");
+            for (int line = 0; line < 6; line++) {
+                builder.append(" * Line ").append(line).append(" of the notes on step_").append(i)
+                        .append(", which explain what it is for and when to call it.\n");
+            }
+            builder.append(" */\n");
+            builder.append("fun step_").append(i).append("(n) {\n");
+            builder.append("        if (n > ").append(i).append(") {\n");
+            builder.append("                // Past the end of this step's range; report it and stop.\n");
+            builder.append("                print \"step_").append(i)
+                    .append(" was given a value past the end of its range and cannot continue\";\n");
+            builder.append("                return nil;\n");
+            builder.append("        }\n");
+            builder.append("        return n + 1;    // The next value.\n");
+            builder.append("}\n\n");
+        }
+        builder.append("print step_").append(functions - 1).append("(1);\n");
+        return builder.toString();
+    }
+
+    private static String resource(String name) {
+        try (InputStream input = Corpus.class.getResourceAsStream("/corpus/" + name)) {
+            if (input == null) {
+                throw new IllegalArgumentException("No benchmark program named " + name);
+            }
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
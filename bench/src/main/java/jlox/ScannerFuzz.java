@@ -0,0 +1,137 @@
+package jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Checks that the Scanner's vectorized mode produces exactly what the
+ * character-at-a-time one does: the same tokens with the same lines and
+ * positions, and the same errors. Sources are random mixes of the things
+ * the vectorized mode skips over (whitespace runs, comments and strings,
+ * short and long, finished and not) with ordinary tokens in between.
+ *
+ * java --add-modules jdk.incubator.vector -cp target/benchmarks.jar jlox.ScannerFuzz [cases] [seed]
+ */
+public class ScannerFuzz {
+    private static final String[] WORDS = {
+            "var", "fun", "class", "print", "while", "for", "pfor", "x", "_tmp", "total2", "this",
+            "1", "42", "3.25", "7.", "1234567890123456789", "(", ")", "{", "}", "[", "]", ",", ".",
+            ";", "-", "+", "*", "/", "?", ":", "!", "!=", "=", "==", "<", "<=", ">", ">=", "@", "#",
+            "é", "€", "😀",
+    };
+    private static final char[] BLANKS = {' ', ' ', ' ', '\t', '\r', '\n', '\n'};
+    private static final char[] FILLER = {'a', 'Z', '0', ' ', '*', '/', '"', '\n', '\t', 'é', '中'};
+
+    public static void main(String[] args) {
+        if (!Scanner.VECTOR_API) {
+            System.err.println("Run with --add-modules jdk.incubator.vector to compare the vectorized scanner.");
+            System.exit(64);
+        }
+        int cases = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        Random random = new Random(seed);
+
+        PrintStream stderr = System.err;
+        for (int i = 0; i < cases; i++) {
+            String source = source(random);
+            String scalar = scan(source, false);
+            String vectorized = scan(source, true);
+            if (!scalar.equals(vectorized)) {
+                System.setErr(stderr);
+                System.err.println(String.format("Case %d of seed %d differs.%nSource: %s%nScalar:%n%s%nVectorized:%n%s",
+                        i, seed, escape(source), scalar, vectorized));
+                System.exit(1);
+            }
+        }
+        System.setErr(stderr);
+        System.out.println(String.format("%d sources scanned the same both ways (seed %d).", cases, seed));
+    }
+
+    /**
+     * Everything one scan produced, as text to compare.
+     */
+    private static String scan(String source, boolean vectorized) {
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(errors, true));
+        Lox.hadError = false;
+        StringBuilder result = new StringBuilder();
+        try {
+            for (Token token : new Scanner(source, vectorized).scanTokens()) {
+                result.append(String.format("%s %s %s %d %d%n", token.type, escape(token.lexeme),
+                        Objects.toString(token.literal), token.line, token.tokenPosition));
+            }
+        } catch (RuntimeException e) {
+            result.append(e).append('\n');
+        }
+        return result.append(Lox.hadError).append('\n').append(errors).toString();
+    }
+
+    private static String source(Random random) {
+        StringBuilder source = new StringBuilder();
+        int pieces = random.nextInt(random.nextBoolean() ? 20 : 400);
+        for (int i = 0; i < pieces; i++) {
+            switch (random.nextInt(8)) {
+                case 0:
+                case 1:
+                    blanks(source, random, random.nextInt(4) == 0 ? 80 : 4);
+                    break;
+                case 2:
+                    source.append("//");
+                    filler(source, random, 60, '\n');
+                    if (random.nextInt(10) != 0) source.append('\n');
+                    break;
+                case 3:
+                    source.append("/*");
+                    filler(source, random, 120, '\0');
+                    if (random.nextInt(10) != 0) source.append(random.nextBoolean() ? "*/" : "**/");
+                    break;
+                case 4:
+                    source.append('"');
+                    filler(source, random, 90, '"');
+                    if (random.nextInt(10) != 0) source.append('"');
+                    break;
+                default:
+                    source.append(WORDS[random.nextInt(WORDS.length)]);
+                    break;
+            }
+        }
+        return source.toString();
+    }
+
+    private static void blanks(StringBuilder source, Random random, int bound) {
+        int length = 1 + random.nextInt(bound);
+        for (int i = 0; i < length; i++) {
+            source.append(BLANKS[random.nextInt(BLANKS.length)]);
+        }
+    }
+
+    /**
+     * Random text that may run long, with excluded left out so a comment or
+     * string does not end early more often than the cases above choose to.
+     */
+    private static void filler(StringBuilder source, Random random, int bound, char excluded) {
+        int length = random.nextInt(random.nextBoolean() ? 8 : bound);
+        for (int i = 0; i < length; i++) {
+            char c = FILLER[random.nextInt(FILLER.length)];
+            if (c != excluded) source.append(c);
+        }
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : text.toCharArray()) {
+            if (c == '\n') {
+                escaped.append("\\n");
+            } else if (c == '\r') {
+                escaped.append("\\r");
+            } else if (c == '\t') {
+                escaped.append("\\t");
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,205 @@
+package jlox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * An interpreter that attributes the allocations the interpreter makes on a
+ * script's behalf to the Lox line that caused them. Used by
+ * {@code --alloc-profile}; byte counts are estimates for a 64-bit JVM with
+ * compressed oops, good enough to rank lines against each other.
+ *
+ * Lists, maps, instances and bound methods are counted at the expression
+ * that first produces them, sized as they are then; a list or map that grows
+ * afterwards is not charged for it.
+ */
+class AllocationTrackingInterpreter extends Interpreter {
+    private static final int TOP_OFFENDERS = 20;
+
+    enum Category {
+        // Cells for variables a closure captures, which take the place of
+        // the scopes blocks used to allocate.
+        BOX("box"),
+        CLOSURE("closure"),
+        INSTANCE("instance"),
+        LIST("list"),
+        MAP("map"),
+        NUMBER_BOX("number box"),
+        STRING("string"),
+        TOKEN("token");
+
+        final String label;
+
+        Category(String label) {
+            this.label = label;
+        }
+    }
+
+    private static class Site {
+        final int line;
+        final Category category;
+        long count = 0;
+        long bytes = 0;
+
+        Site(int line, Category category) {
+            this.line = line;
+            this.category = category;
+        }
+    }
+
+    private final NodeLines nodeLines = new NodeLines();
+    private final Map<Long, Site> sites = new HashMap<>();
+    // Objects already counted. None of them override equals, so this
+    // compares by identity, and it lets them be collected.
+    private final Set<Object> seen = Collections.newSetFromMap(new WeakHashMap<>());
+
+    void countTokens(List<Token> tokens) {
+        for (Token token : tokens) {
+            long bytes = 32 + stringBytes(token.lexeme);
+            if (Numbers.isNumber(token.literal)) bytes += 16;
+            if (token.literal instanceof String) bytes += stringBytes((String) token.literal);
+            record(token.line, Category.TOKEN, bytes);
+        }
+    }
+
+    // Every node has to pass through evaluate and execute to be seen.
+    @Override
+    boolean compilesLoops() {
+        return false;
+    }
+
+    @Override
+    Object evaluate(Expression expression) {
+        Object value = super.evaluate(expression);
+        // Only operators build new values; literals, variables and logical
+        // operators hand back objects that already exist.
+        if (expression instanceof Expression.Binary || expression instanceof Expression.Unary) {
+            if (value instanceof Double || (value instanceof Long && ((long) value < -128 || (long) value > 127))) {
+                // Longs outside Long.valueOf's small-value cache are boxed afresh.
+                record(nodeLines.of(expression), Category.NUMBER_BOX, 16);
+            } else if (value instanceof String) {
+                record(nodeLines.of(expression), Category.STRING, stringBytes((String) value));
+            } else if (value instanceof Rope) {
+                // A rope node; its characters are only allocated if it is flattened.
+                record(nodeLines.of(expression), Category.STRING, 32);
+            }
+        } else if (expression instanceof Expression.Call || expression instanceof Expression.ListLiteral
+                || expression instanceof Expression.Get || expression instanceof Expression.Super) {
+            // The only expressions that make these; a this or a variable
+            // inside an initializer would see its new instance first.
+            if (value instanceof LoxList || value instanceof LoxMap || value instanceof LoxInstance
+                    || (value instanceof LoxFunction && ((LoxFunction) value).receiver != null)) {
+                if (seen.add(value)) recordObject(nodeLines.of(expression), value);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public Void visitVarStatement(Statement.Var statement) {
+        if (statement.boxed) record(nodeLines.of(statement), Category.BOX, 16);
+        return super.visitVarStatement(statement);
+    }
+
+    @Override
+    public Void visitFunctionStatement(Statement.Function statement) {
+        if (statement.escapes && statement.boxed) record(nodeLines.of(statement), Category.BOX, 16);
+        return super.visitFunctionStatement(statement);
+    }
+
+    @Override
+    public Void visitClassStatement(Statement.Class statement) {
+        if (statement.slot >= 0 && statement.boxed) record(nodeLines.of(statement), Category.BOX, 16);
+        return super.visitClassStatement(statement);
+    }
+
+    @Override
+    LoxFunction closure(Statement.Function statement) {
+        // The function object and its array of captured values.
+        record(nodeLines.of(statement), Category.CLOSURE, 24 + referencesBytes(statement.captures.length));
+        return super.closure(statement);
+    }
+
+    @Override
+    void boxParameters(Statement.Function statement) {
+        if (statement.boxedParams.length > 0) {
+            record(nodeLines.of(statement), Category.BOX, 16L * statement.boxedParams.length);
+        }
+        super.boxParameters(statement);
+    }
+
+    @Override
+    void interpret(List<Statement> statements, int slots, boolean repl) {
+        try {
+            super.interpret(statements, slots, repl);
+        } finally {
+            report(System.err);
+        }
+    }
+
+    private void recordObject(int line, Object value) {
+        if (value instanceof LoxList) {
+            // The list and its double[] of numbers, or the Object[] it moves
+            // to, which is no larger.
+            int capacity = Math.max(((LoxList) value).size(), 8);
+            record(line, Category.LIST, 32 + 16 + 8L * capacity);
+        } else if (value instanceof LoxMap) {
+            // The map, its probe table of two ints per entry, and keys,
+            // number keys, hashes and values for each entry.
+            int capacity = Math.max(((LoxMap) value).size(), 8);
+            record(line, Category.MAP, 40 + 5 * 16 + 28L * capacity);
+        } else if (value instanceof LoxInstance) {
+            record(line, Category.INSTANCE, 24 + referencesBytes(((LoxInstance) value).fields.length));
+        } else {
+            // A method bound to its receiver.
+            record(line, Category.CLOSURE, 24);
+        }
+    }
+
+    private static long referencesBytes(int length) {
+        // An Object[] header plus compressed references rounded up to 8 bytes.
+        return (16 + 4L * length + 7) & ~7;
+    }
+
+    private static long stringBytes(String string) {
+        // String header and fields plus a Latin-1 byte[] rounded up to 8 bytes.
+        return 24 + ((16 + string.length() + 7) & ~7);
+    }
+
+    private void record(int line, Category category, long bytes) {
+        Site site = sites.computeIfAbsent(((long) line << 8) | category.ordinal(), key -> new Site(line, category));
+        site.count++;
+        site.bytes += bytes;
+    }
+
+    private void report(PrintStream err) {
+        long[] counts = new long[Category.values().length];
+        long[] bytes = new long[Category.values().length];
+        for (Site site : sites.values()) {
+            counts[site.category.ordinal()] += site.count;
+            bytes[site.category.ordinal()] += site.bytes;
+        }
+
+        err.println("Allocations by category:");
+        err.println(String.format("%-12s %12s %14s", "category", "count", "est. bytes"));
+        for (Category category : Category.values()) {
+            err.println(String.format("%-12s %12d %14d", category.label,
+                    counts[category.ordinal()], bytes[category.ordinal()]));
+        }
+
+        List<Site> offenders = new ArrayList<>(sites.values());
+        offenders.sort((a, b) -> Long.compare(b.bytes, a.bytes));
+        err.println(String.format("Top %d allocating lines:", Math.min(TOP_OFFENDERS, offenders.size())));
+        err.println(String.format("%6s %-12s %12s %14s", "line", "category", "count", "est. bytes"));
+        for (Site site : offenders.subList(0, Math.min(TOP_OFFENDERS, offenders.size()))) {
+            err.println(String.format("%6s %-12s %12d %14d", site.line == NodeLines.UNKNOWN ? "?" : site.line,
+                    site.category.label, site.count, site.bytes));
+        }
+    }
+}
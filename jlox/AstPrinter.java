@@ -79,4 +79,45 @@ class AstPrinter implements Expression.Visitor<String> {
     public String visitLogicalExpression(Logical expression) {
         return "(" + expression.left + " " + expression.operator.lexeme + " " + expression.right;
     }
+
+    @Override
+    public String visitGetExpression(Get expression) {
+        return parenthesize("." + expression.name.lexeme, expression.object);
+    }
+
+    @Override
+    public String visitSetExpression(Set expression) {
+        return parenthesize("=." + expression.name.lexeme, expression.object, expression.value);
+    }
+
+    @Override
+    public String visitListLiteralExpression(ListLiteral expression) {
+        return parenthesize("list", expression.elements.toArray(new Expression[0]));
+    }
+
+    @Override
+    public String visitIndexExpression(Index expression) {
+        return parenthesize("[]", expression.object, expression.index);
+    }
+
+    @Override
+    public String visitIndexAssignExpression(IndexAssign expression) {
+        return parenthesize("[]=", expression.object, expression.index, expression.value);
+    }
+
+    @Override
+    public String visitThisExpression(This expression) {
+        return "this";
+    }
+
+    @Override
+    public String visitSuperExpression(Super expression) {
+        return "(super " + expression.method.lexeme + ")";
+    }
+
+    @Override
+    public String visitCallExpression(Call expression) {
+        return parenthesize("call " + expression.callee.accept(this),
+                expression.arguments.toArray(new Expression[0]));
+    }
 }
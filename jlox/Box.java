@@ -0,0 +1,19 @@
+package jlox;
+
+/**
+ * A shared mutable cell for a local variable that a closure captures and
+ * that is assigned after its declaration. Closures copy captured values when
+ * they are created; boxing only these variables keeps later writes visible
+ * to every function that captured them.
+ */
+final class Box {
+    Object value;
+    // The pfor worker that made this, which alone may assign to it while the
+    // pfor runs; null when made outside any pfor. See Interpreter#checkWritable.
+    final Interpreter owner;
+
+    Box(Object value, Interpreter owner) {
+        this.value = value;
+        this.owner = owner;
+    }
+}
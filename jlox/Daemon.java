@@ -0,0 +1,272 @@
+package jlox;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Keeps one JVM, with the interpreter's classes loaded and its hot paths
+ * compiled, serving scripts over a Unix-domain socket, so running a short
+ * script costs about what the script itself takes rather than JVM startup
+ * and warmup. tool/jloxc.py is the client.
+ *
+ * A request is a kind byte, 'P' for the absolute path of a script or 'S'
+ * for its source, then the length and bytes of the path or source. The
+ * reply is a series of frames, each a kind byte, a length and that many
+ * bytes: 'O' for standard output, 'E' for standard error, and a last 'X'
+ * holding the four-byte exit code jlox would have exited with.
+ *
+ * Every script gets a fresh interpreter, with globals of its own. Error
+ * reporting goes through Lox's static state and System.err, so scripts run
+ * one at a time; other clients wait to be accepted. So that one runaway
+ * script cannot hold them up for good, a script is cancelled when its client
+ * hangs up or after jlox.requestTimeout seconds (300 by default, 0 for no
+ * limit). A cancelled script stops at its next loop iteration or call. One
+ * that still has not stopped a second later, such as a task blocked on a
+ * channel nothing will send to, is left running on its own thread. It would
+ * still write Lox's error flags and System.err, so until it stops every
+ * request is refused rather than run next to it.
+ */
+final class Daemon {
+    private static final byte PATH = 'P';
+    private static final byte SOURCE = 'S';
+    private static final byte OUT = 'O';
+    private static final byte ERR = 'E';
+    private static final byte EXIT = 'X';
+    // The longest path or script a client may send.
+    private static final int MAX_PAYLOAD = 64 << 20;
+    private static final int TIMEOUT_SECONDS = Integer.getInteger("jlox.requestTimeout", 300);
+    private static final long GRACE_MILLIS = 1000;
+
+    private final Path socket;
+    // The thread of a cancelled script that did not stop, while it runs.
+    private Thread leftover;
+
+    Daemon(Path socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Where the daemon and the client meet unless told otherwise.
+     */
+    static Path defaultSocket() {
+        String path = System.getenv("JLOX_SOCKET");
+        if (path != null) return Paths.get(path);
+        return Paths.get("/tmp", "jlox-" + System.getProperty("user.name") + ".sock");
+    }
+
+    void serve() throws IOException {
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socket);
+        if (Files.exists(socket)) {
+            if (answers(address)) {
+                throw new IOException(String.format("A daemon is already listening on %s.", socket));
+            }
+            // Left over from a daemon that did not shut down cleanly.
+            Files.delete(socket);
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(address);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException e) {
+                    // Nothing to be done on the way out.
+                }
+            }));
+            System.err.println(String.format("[daemon] listening on %s", socket));
+            while (true) {
+                try (SocketChannel client = server.accept()) {
+                    handle(client);
+                } catch (EOFException e) {
+                    // A client that hung up before asking for anything, such
+                    // as another daemon checking whether this one is up.
+                } catch (IOException | RuntimeException e) {
+                    // One bad client must not take the daemon down for the rest.
+                    System.err.println(String.format("[daemon] request failed: %s", e));
+                }
+            }
+        }
+    }
+
+    private static boolean answers(UnixDomainSocketAddress address) {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            return channel.isConnected();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void handle(SocketChannel client) throws IOException {
+        DataInputStream request = new DataInputStream(Channels.newInputStream(client));
+        byte kind = request.readByte();
+        int length = request.readInt();
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException(String.format("request of %d bytes refused", length));
+        }
+        byte[] payload = new byte[length];
+        request.readFully(payload);
+
+        Frames frames = new Frames(new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client))));
+        PrintStream out = new PrintStream(frames.stream(OUT), true);
+        PrintStream err = new PrintStream(frames.stream(ERR), true);
+        if (leftover != null && leftover.isAlive()) {
+            err.println("A cancelled script is still running, so no scripts run until it stops."
+                    + " Restart the daemon if it never does.");
+            frames.exit(70);
+            return;
+        }
+        leftover = null;
+
+        PrintStream daemonErr = System.err;
+        System.setErr(err);
+        int exitCode;
+        try {
+            exitCode = supervise(client, kind, payload, out, err);
+        } finally {
+            out.flush();
+            err.flush();
+            System.setErr(daemonErr);
+        }
+        if (leftover != null) {
+            System.err.println("[daemon] a cancelled script did not stop; refusing requests until it does");
+        }
+        frames.exit(exitCode);
+    }
+
+    /**
+     * Runs a request's script on a thread of its own and waits for it,
+     * cancelling it if the client hangs up or it runs out of time.
+     */
+    private int supervise(SocketChannel client, byte kind, byte[] payload, PrintStream out, PrintStream err) {
+        Interpreter interpreter = new Interpreter(out);
+        int[] exitCode = {70};
+        Thread runner = new Thread(null, () -> {
+            try {
+                exitCode[0] = run(kind, payload, interpreter, err);
+            } catch (RuntimeException | StackOverflowError e) {
+                err.println(String.format("Internal error: %s", e));
+            }
+        }, "lox-request", Interpreter.STACK_SIZE);
+        runner.setDaemon(true);
+
+        Thread watcher = new Thread(() -> {
+            try {
+                // The client sends nothing after its request, so this only
+                // returns once it hangs up.
+                client.read(ByteBuffer.allocate(1));
+            } catch (IOException e) {
+                // The reply is done and the connection closed.
+                return;
+            }
+            interpreter.cancel("Cancelled: the client hung up.");
+        }, "lox-request-watcher");
+        watcher.setDaemon(true);
+
+        runner.start();
+        watcher.start();
+        try {
+            runner.join(TIMEOUT_SECONDS * 1000L);
+            if (runner.isAlive()) {
+                interpreter.cancel(String.format("Cancelled: the script ran for more than %d seconds.", TIMEOUT_SECONDS));
+                runner.join(GRACE_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (runner.isAlive()) {
+            err.println("The script did not stop when cancelled and was left running.");
+            leftover = runner;
+            return 70;
+        }
+        return exitCode[0];
+    }
+
+    private static int run(byte kind, byte[] payload, Interpreter interpreter, PrintStream err) {
+        String source;
+        if (kind == PATH) {
+            String path = new String(payload, StandardCharsets.UTF_8);
+            try {
+                source = new String(Files.readAllBytes(Paths.get(path)), Charset.defaultCharset());
+            } catch (IOException e) {
+                err.println(String.format("Could not read %s.", path));
+                return 66;
+            }
+        } else if (kind == SOURCE) {
+            source = new String(payload, Charset.defaultCharset());
+        } else {
+            err.println("Unknown request.");
+            return 64;
+        }
+
+        Lox.hadError = false;
+        Lox.hadRuntimeError = false;
+        Lox.run(source, interpreter);
+        if (Lox.hadError) return 65;
+        if (Lox.hadRuntimeError) return 70;
+        return 0;
+    }
+
+    /**
+     * Writes the frames of one reply. Spawned tasks print from threads of
+     * their own, so frames are written whole under a lock.
+     */
+    private static final class Frames {
+        private final DataOutputStream socket;
+
+        Frames(DataOutputStream socket) {
+            this.socket = socket;
+        }
+
+        synchronized void write(byte kind, byte[] bytes, int offset, int length) throws IOException {
+            socket.writeByte(kind);
+            socket.writeInt(length);
+            socket.write(bytes, offset, length);
+        }
+
+        synchronized void flush() throws IOException {
+            socket.flush();
+        }
+
+        synchronized void exit(int code) throws IOException {
+            socket.writeByte(EXIT);
+            socket.writeInt(4);
+            socket.writeInt(code);
+            socket.flush();
+        }
+
+        OutputStream stream(byte kind) {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    if (length > 0) Frames.this.write(kind, bytes, offset, length);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    Frames.this.flush();
+                }
+            };
+        }
+    }
+}
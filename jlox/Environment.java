@@ -1,46 +0,0 @@
-package jlox;
-
-import java.util.HashMap;
-import java.util.Map;
-
-class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<String, Object>();
-    
-    Environment() {
-        enclosing = null;
-    }
-
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
-    }
-
-
-    void define(String name, Object initializer){
-        values.put(name, initializer);
-    }
-
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-
-        if (enclosing != null) return enclosing.get(name);
-
-        throw new RuntimeError(name, String.format("Undefined variable %s.", name.lexeme));
-     }
-
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
-
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
-
-        throw new RuntimeError(name, String.format("Undefined variable %s.", name.lexeme));
-    }
-}
@@ -1,5 +1,7 @@
 package jlox;
 
+import java.util.List;
+
 abstract class Expression {
     interface Visitor<R> {
         R visitAssignExpression(Assign expression);
@@ -15,6 +17,22 @@ abstract class Expression {
         R visitVariableExpression(Variable expression);
 
         R visitLogicalExpression(Logical expression);
+
+        R visitCallExpression(Call expression);
+
+        R visitGetExpression(Get expression);
+
+        R visitSetExpression(Set expression);
+
+        R visitThisExpression(This expression);
+
+        R visitSuperExpression(Super expression);
+
+        R visitListLiteralExpression(ListLiteral expression);
+
+        R visitIndexExpression(Index expression);
+
+        R visitIndexAssignExpression(IndexAssign expression);
     }
 
     static class Assign extends Expression {
@@ -29,6 +47,20 @@ abstract class Expression {
 
         final Token name;
         final jlox.Expression value;
+
+        // Where the Resolver found the variable: a slot in the current frame,
+        // or in the declaring function's frame if linked, or an index into the
+        // running closure's captures; both -1 for a global. Boxed variables
+        // hold a Box in place of their value.
+        int slot = -1;
+        int capture = -1;
+        boolean linked;
+        boolean boxed;
+        Globals.Cell cell;
+
+        // Set by the Resolver when only the variable's own function writes
+        // it, so TypeInference can follow its type through that function.
+        boolean tracked;
     }
 
     static class Binary extends Expression {
@@ -45,6 +77,13 @@ abstract class Expression {
         final Expression left;
         final Token operator;
         final Expression right;
+
+        // Set by TypeInference: the type of the result, whether both operands
+        // are known to be numbers so no check is needed, and whether an
+        // operand is a list element that can be read without boxing it.
+        LoxType type = LoxType.UNKNOWN;
+        boolean numeric;
+        boolean indexed;
     }
 
     static class Grouping extends Expression {
@@ -83,6 +122,10 @@ abstract class Expression {
 
         final Token operator;
         final Expression right;
+
+        // Set by TypeInference, as for Binary.
+        LoxType type = LoxType.UNKNOWN;
+        boolean numeric;
     }
 
     static class Variable extends Expression {
@@ -95,6 +138,21 @@ abstract class Expression {
         }
 
         final Token name;
+
+        // Where the Resolver found the variable: a slot in the current frame,
+        // or in the declaring function's frame if linked, or an index into the
+        // running closure's captures; both -1 for a global. Boxed variables
+        // hold a Box in place of their value.
+        int slot = -1;
+        int capture = -1;
+        boolean linked;
+        boolean boxed;
+        Globals.Cell cell;
+
+        // Set by the Resolver as for Assign, then by TypeInference to the
+        // type the variable is known to hold here.
+        boolean tracked;
+        LoxType type = LoxType.UNKNOWN;
     }
 
     static class Logical extends Expression {
@@ -113,5 +171,144 @@ abstract class Expression {
         final Expression right;
     }
 
+    static class Call extends Expression {
+        Call(Expression callee, Token paren, List<Expression> arguments) {
+            this.callee = callee;
+            this.paren = paren;
+            this.arguments = arguments;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCallExpression(this);
+        }
+
+        final Expression callee;
+        final Token paren;
+        final List<Expression> arguments;
+
+        // Set by the Resolver when the callee is a function that never
+        // escapes, which is called without a function object.
+        Statement.Function direct;
+        boolean fromDeclarer;
+    }
+
+    static class Get extends Expression {
+        Get(Expression object, Token name) {
+            this.object = object;
+            this.name = name;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitGetExpression(this);
+        }
+
+        final Expression object;
+        final Token name;
+
+        InlineCache cache = InlineCache.EMPTY;
+    }
+
+    static class Set extends Expression {
+        Set(Expression object, Token name, Expression value) {
+            this.object = object;
+            this.name = name;
+            this.value = value;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSetExpression(this);
+        }
+
+        final Expression object;
+        final Token name;
+        final Expression value;
+
+        InlineCache cache = InlineCache.EMPTY;
+    }
+
+    static class This extends Expression {
+        This(Token keyword) {
+            this.keyword = keyword;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitThisExpression(this);
+        }
+
+        final Token keyword;
+
+        // Resolved like a local variable; this is always slot 0 of a method.
+        int slot = -1;
+        int capture = -1;
+        boolean linked;
+        boolean boxed;
+    }
+
+    static class Super extends Expression {
+        Super(Token keyword, Token method) {
+            this.keyword = keyword;
+            this.method = method;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSuperExpression(this);
+        }
+
+        final Token keyword;
+        final Token method;
+
+        // Created by the Resolver to read the superclass and the receiver.
+        Variable superclass;
+        This receiver;
+    }
+
+    static class ListLiteral extends Expression {
+        ListLiteral(Token bracket, List<Expression> elements) {
+            this.bracket = bracket;
+            this.elements = elements;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitListLiteralExpression(this);
+        }
+
+        final Token bracket;
+        final List<Expression> elements;
+    }
+
+    static class Index extends Expression {
+        Index(Expression object, Token bracket, Expression index) {
+            this.object = object;
+            this.bracket = bracket;
+            this.index = index;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIndexExpression(this);
+        }
+
+        final Expression object;
+        final Token bracket;
+        final Expression index;
+    }
+
+    static class IndexAssign extends Expression {
+        IndexAssign(Expression object, Token bracket, Expression index, Expression value) {
+            this.object = object;
+            this.bracket = bracket;
+            this.index = index;
+            this.value = value;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIndexAssignExpression(this);
+        }
+
+        final Expression object;
+        final Token bracket;
+        final Expression index;
+        final Expression value;
+    }
+
     abstract <R> R accept(Visitor<R> visitor);
 }
\ No newline at end of file
@@ -0,0 +1,61 @@
+package jlox;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Top-level variables. Each name gets a {@link Cell} the first time it is
+ * mentioned. A cell is never replaced, only its value changes, so variable and
+ * assignment nodes can cache the cell after their first lookup and stay
+ * correct when a later REPL line defines or redefines the variable.
+ */
+class Globals {
+    private static final Object UNDEFINED = new Object();
+
+    static final class Cell {
+        final Globals owner;
+        final String name;
+        private Object value = UNDEFINED;
+
+        private Cell(Globals owner, String name) {
+            this.owner = owner;
+            this.name = name;
+        }
+
+        void define(Object value) {
+            this.value = value;
+        }
+
+        Object get(Token name) {
+            if (value == UNDEFINED) {
+                throw new RuntimeError(name, String.format("Undefined variable %s.", name.lexeme));
+            }
+            return value;
+        }
+
+        void assign(Token name, Object value) {
+            if (this.value == UNDEFINED) {
+                throw new RuntimeError(name, String.format("Undefined variable %s.", name.lexeme));
+            }
+            this.value = value;
+        }
+    }
+
+    private final Map<String, Cell> cells = new LinkedHashMap<>();
+
+    /**
+     * The value of every defined variable, in the order the names were
+     * first mentioned.
+     */
+    synchronized Map<String, Object> values() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Cell cell : cells.values()) {
+            if (cell.value != UNDEFINED) values.put(cell.name, cell.value);
+        }
+        return values;
+    }
+
+    synchronized Cell cell(String name) {
+        return cells.computeIfAbsent(name, key -> new Cell(this, key));
+    }
+}
@@ -0,0 +1,77 @@
+package jlox;
+
+/**
+ * What a property site has learned about the shapes it has seen: for each
+ * shape, the slot holding the property or the method it names, and for
+ * assignments the shape the instance moves to. A site that has seen one
+ * shape is monomorphic and pays one identity comparison per access; after
+ * {@link #POLYMORPHIC_LIMIT} shapes it stops learning and looks up the
+ * remaining shapes on every access.
+ *
+ * Entries are immutable and a site's cache is replaced rather than changed,
+ * so a thread reading a site while another updates it sees either the old
+ * cache or the new one.
+ */
+final class InlineCache {
+    static final int POLYMORPHIC_LIMIT = 4;
+    static final InlineCache EMPTY = new InlineCache(new Entry[0]);
+
+    static final class Entry {
+        final Shape shape;
+        // The field's slot, or -1 when the property is a method.
+        final int index;
+        final LoxFunction method;
+        final Shape transition;
+
+        private Entry(Shape shape, int index, LoxFunction method, Shape transition) {
+            this.shape = shape;
+            this.index = index;
+            this.method = method;
+            this.transition = transition;
+        }
+    }
+
+    private final Entry[] entries;
+
+    private InlineCache(Entry[] entries) {
+        this.entries = entries;
+    }
+
+    Entry find(Shape shape) {
+        for (Entry entry : entries) {
+            if (entry.shape == shape) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Returns this cache with an entry added, or unchanged if the site is
+     * megamorphic.
+     */
+    InlineCache with(Entry entry) {
+        if (entries.length == POLYMORPHIC_LIMIT) return this;
+        Entry[] extended = new Entry[entries.length + 1];
+        System.arraycopy(entries, 0, extended, 0, entries.length);
+        extended[entries.length] = entry;
+        return new InlineCache(extended);
+    }
+
+    /**
+     * Looks a property up the slow way: fields first, then methods. Returns
+     * null if instances of this shape have no such property.
+     */
+    static Entry get(Shape shape, String name) {
+        int index = shape.indexOf(name);
+        if (index >= 0) return new Entry(shape, index, null, shape);
+
+        LoxFunction method = shape.klass.findMethod(name);
+        if (method != null) return new Entry(shape, -1, method, shape);
+        return null;
+    }
+
+    static Entry set(Shape shape, String name) {
+        int index = shape.indexOf(name);
+        if (index >= 0) return new Entry(shape, index, null, shape);
+        return new Entry(shape, shape.size, null, shape.with(name));
+    }
+}
@@ -0,0 +1,474 @@
+package jlox;
+
+import java.io.Console;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import jlox.Expression.*;
+import jlox.Statement.*;
+
+/**
+ * Puts probes around chosen statements of a parsed script, for tracing,
+ * breakpoints and variable watches. Each chosen statement is replaced in its
+ * list by an {@link Instrumented} node that runs the probe around it; every
+ * other node stays exactly as the parser made it, so statements nobody asked
+ * about run with no extra checks, in the interpreter and in compiled loops.
+ *
+ * This runs between parsing and the Resolver, so the variables a probe
+ * reads are resolved where its statement is, like the statement's own. Lazy
+ * blocks would have no statements to instrument yet, so an instrumented
+ * script is parsed eagerly.
+ */
+final class Instrumentation implements Statement.Visitor<Void>, Expression.Visitor<Void> {
+    /**
+     * Code run around an instrumented statement. Probes in a pfor body run
+     * on several threads at once.
+     */
+    interface Probe {
+        default void before(Interpreter interpreter, Instrumented statement) {
+        }
+
+        /**
+         * Runs once the statement has finished, unless it threw.
+         */
+        default void after(Interpreter interpreter, Instrumented statement) {
+        }
+
+        /**
+         * The variables {@link #values} reads for this probe.
+         */
+        default Collection<String> variables() {
+            return Collections.emptySet();
+        }
+    }
+
+    interface Instrument {
+        /**
+         * The probe to put around a statement, or null to leave it alone.
+         */
+        Probe probe(Site site);
+    }
+
+    /**
+     * A statement that could be instrumented. Blocks are not: they have no
+     * line of their own, and their statements are sites themselves.
+     */
+    static final class Site {
+        final Statement statement;
+        final int line;
+        // The source line the statement starts on, trimmed.
+        final String text;
+        // Names the statement itself reads and assigns, leaving out the
+        // statements nested in it, which are sites of their own.
+        final Set<String> reads = new LinkedHashSet<>();
+        final Set<String> assigns = new LinkedHashSet<>();
+        private final Map<String, Token> tokens = new HashMap<>();
+
+        private Site(Statement statement, int line, String text) {
+            this.statement = statement;
+            this.line = line;
+            this.text = text;
+        }
+
+        private List<Variable> variables(Collection<String> names) {
+            List<Variable> variables = new ArrayList<>();
+            for (String name : names) {
+                Token token = tokens.get(name);
+                if (token != null) variables.add(new Variable(token));
+            }
+            return variables;
+        }
+    }
+
+    private final String[] lines;
+    private final List<Instrument> instruments;
+    private final NodeLines nodeLines = new NodeLines();
+    private Site site;
+
+    Instrumentation(String source, List<Instrument> instruments) {
+        this.lines = source.split("\n", -1);
+        this.instruments = instruments;
+    }
+
+    /**
+     * Instruments the statements of a script, and those nested in them, in
+     * place. The first instrument's probe ends up outermost.
+     */
+    void instrument(List<Statement> statements) {
+        for (int i = 0; i < statements.size(); i++) {
+            Statement statement = statements.get(i);
+            int line = nodeLines.of(statement);
+            String text = line >= 1 && line <= lines.length ? lines[line - 1].strip() : "";
+            Site enclosing = site;
+            site = new Site(statement, line, text);
+            statement.accept(this);
+            Site current = site;
+            site = enclosing;
+            if (statement instanceof Block) continue;
+
+            for (int j = instruments.size() - 1; j >= 0; j--) {
+                Probe probe = instruments.get(j).probe(current);
+                if (probe != null) {
+                    statement = new Instrumented(statement, line, probe, current.variables(probe.variables()));
+                }
+            }
+            statements.set(i, statement);
+        }
+    }
+
+    /**
+     * The current values of the variables a probe asked for, by name.
+     * Globals the script has not defined yet are left out.
+     */
+    static Map<String, Object> values(Interpreter interpreter, Instrumented statement) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Variable variable : statement.variables) {
+            try {
+                values.put(variable.name.lexeme, interpreter.evaluate(variable));
+            } catch (RuntimeError e) {
+                // Undefined so far.
+            }
+        }
+        return values;
+    }
+
+    private void visit(Expression expression) {
+        if (expression != null) expression.accept(this);
+    }
+
+    private void visit(Statement statement) {
+        if (statement != null) statement.accept(this);
+    }
+
+    private void read(Token name) {
+        site.reads.add(name.lexeme);
+        site.tokens.putIfAbsent(name.lexeme, name);
+    }
+
+    private void assign(Token name) {
+        site.assigns.add(name.lexeme);
+        site.tokens.putIfAbsent(name.lexeme, name);
+    }
+
+    @Override
+    public Void visitExpressionStatement(Statement.Expression statement) {
+        visit(statement.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStatement(Print statement) {
+        visit(statement.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStatement(Var statement) {
+        visit(statement.initializer);
+        assign(statement.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStatement(Block statement) {
+        instrument(statement.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStatement(If statement) {
+        visit(statement.condition);
+        visit(statement.thenBranch);
+        visit(statement.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStatement(While statement) {
+        visit(statement.condition);
+        visit(statement.body);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStatement(Function statement) {
+        instrument(statement.body);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStatement(Return statement) {
+        visit(statement.value);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStatement(Statement.Class statement) {
+        for (Function method : statement.methods) {
+            instrument(method.body);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitParallelForStatement(ParallelFor statement) {
+        visit(statement.from);
+        visit(statement.to);
+        for (Variable target : statement.targets) {
+            assign(target.name);
+        }
+        instrument(statement.body.body);
+        return null;
+    }
+
+    @Override
+    public Void visitSpawnStatement(Spawn statement) {
+        if (statement.body != null) {
+            instrument(statement.body.body);
+        } else {
+            visit(statement.call);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLazyBlockStatement(LazyBlock statement) {
+        // Never made for an instrumented script.
+        return null;
+    }
+
+    @Override
+    public Void visitInstrumentedStatement(Instrumented statement) {
+        visit(statement.statement);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpression(Assign expression) {
+        visit(expression.value);
+        assign(expression.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpression(Binary expression) {
+        visit(expression.left);
+        visit(expression.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpression(Grouping expression) {
+        visit(expression.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpression(Literal expression) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpression(Unary expression) {
+        visit(expression.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpression(Variable expression) {
+        read(expression.name);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpression(Logical expression) {
+        visit(expression.left);
+        visit(expression.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpression(Call expression) {
+        // Reading a called function's name as a value of its own would make
+        // the Resolver treat it as escaping, and its value says little.
+        if (!(expression.callee instanceof Variable)) visit(expression.callee);
+        for (Expression argument : expression.arguments) {
+            visit(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpression(Get expression) {
+        visit(expression.object);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpression(Expression.Set expression) {
+        visit(expression.object);
+        visit(expression.value);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpression(This expression) {
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpression(Super expression) {
+        return null;
+    }
+
+    @Override
+    public Void visitListLiteralExpression(ListLiteral expression) {
+        for (Expression element : expression.elements) {
+            visit(element);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpression(Index expression) {
+        visit(expression.object);
+        visit(expression.index);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexAssignExpression(IndexAssign expression) {
+        visit(expression.object);
+        visit(expression.index);
+        visit(expression.value);
+        return null;
+    }
+
+    /**
+     * Prints each statement's line as it starts, for --trace.
+     */
+    static final class Trace implements Instrument {
+        @Override
+        public Probe probe(Site site) {
+            String message = String.format("[trace] line %d: %s", site.line, site.text);
+            return new Probe() {
+                @Override
+                public void before(Interpreter interpreter, Instrumented statement) {
+                    System.err.println(message);
+                }
+            };
+        }
+    }
+
+    /**
+     * Stops before the statements on the given lines, for --break, showing
+     * the variables each one uses. With a terminal attached it waits there
+     * until told to continue; otherwise it only prints and carries on.
+     */
+    static final class Breakpoints implements Instrument {
+        private final Set<Integer> lines;
+
+        Breakpoints(Set<Integer> lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public Probe probe(Site site) {
+            if (!lines.contains(site.line)) return null;
+            Set<String> names = new LinkedHashSet<>(site.reads);
+            names.addAll(site.assigns);
+            // What a declaration declares does not hold anything yet.
+            if (site.statement instanceof Var) names.remove(((Var) site.statement).name.lexeme);
+            return new Breakpoint(site.text, names);
+        }
+    }
+
+    private static final class Breakpoint implements Probe {
+        private final String text;
+        private final Set<String> names;
+        private volatile boolean disabled = false;
+
+        Breakpoint(String text, Set<String> names) {
+            this.text = text;
+            this.names = names;
+        }
+
+        @Override
+        public Collection<String> variables() {
+            return names;
+        }
+
+        @Override
+        public void before(Interpreter interpreter, Instrumented statement) {
+            if (disabled) return;
+            // One stop at a time, whichever task reaches it.
+            synchronized (Breakpoint.class) {
+                System.err.println(String.format("[break] line %d: %s", statement.line, text));
+                for (Map.Entry<String, Object> value : values(interpreter, statement).entrySet()) {
+                    System.err.println(String.format("  %s = %s", value.getKey(), Interpreter.stringify(value.getValue())));
+                }
+
+                Console console = System.console();
+                if (console == null) return;
+                while (true) {
+                    String command = console.readLine("(break) c to continue, d to disable this breakpoint: ");
+                    if (command == null || command.isBlank() || command.strip().equals("c")) return;
+                    if (command.strip().equals("d")) {
+                        disabled = true;
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Prints a variable whenever a statement that assigns it leaves it with
+     * a new value, for --watch-var. Every variable of that name is watched,
+     * global or local.
+     */
+    static final class Watch implements Instrument {
+        private final String name;
+        private boolean reported = false;
+        private Object last;
+
+        Watch(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Probe probe(Site site) {
+            if (!site.assigns.contains(name)) return null;
+            Set<String> variables = Collections.singleton(name);
+            return new Probe() {
+                @Override
+                public void after(Interpreter interpreter, Instrumented statement) {
+                    report(interpreter, statement);
+                }
+
+                @Override
+                public Collection<String> variables() {
+                    return variables;
+                }
+            };
+        }
+
+        private synchronized void report(Interpreter interpreter, Instrumented statement) {
+            Map<String, Object> values = values(interpreter, statement);
+            if (!values.containsKey(name)) return;
+            Object value = values.get(name);
+            if (reported && Objects.equals(value, last)) return;
+            reported = true;
+            last = value;
+            System.err.println(String.format("[watch] line %d: %s = %s", statement.line, name, Interpreter.stringify(value)));
+        }
+    }
+}
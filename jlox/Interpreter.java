@@ -1,6 +1,15 @@
 package jlox;
 
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import jlox.Expression.*;
 import jlox.Statement.*;
@@ -8,21 +17,199 @@ import jlox.Statement.*;
 import static jlox.TokenType.*;
 
 public class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Void> {
-    private Environment environment = new Environment();
+    static final int MAX_CALL_DEPTH = Integer.getInteger("jlox.maxCallDepth", 1024);
+    // The Java stack a thread needs to reach MAX_CALL_DEPTH. A Lox call takes
+    // several visitor frames, about 1.5 KB for a plain recursive function and
+    // more when its expressions nest deeply, so this allows 8 KB a call.
+    static final long STACK_SIZE = (1L << 20) + MAX_CALL_DEPTH * 8L * 1024;
+
+    // How many times a loop's body runs, over all its executions, before the
+    // loop is handed to the compiled tier.
+    static final int TIER_UP_THRESHOLD = Integer.getInteger("jlox.tierUpThreshold", 1000);
+    private static final boolean LOG_TIER_UP = Boolean.getBoolean("jlox.logTierUp");
+    // Stands in for an element of a numeric list read by element(), whose
+    // value is left in unboxed instead.
+    static final Object UNBOXED = new Object();
+
+    private final PrintStream out;
+    final Globals globals;
+    private final Tasks tasks;
+    // Readers and writers the script has opened and not closed yet.
+    private final Set<LoxReader> readers;
+    private final Set<LoxWriter> writers;
+    // The message to stop with once whoever started the script gives up on
+    // it, as the daemon does; see cancel().
+    private final AtomicReference<String> cancellation;
     private boolean repl;
 
-    void interpret(List<Statement> statements, boolean repl) {
-        this.repl = repl;
-        try {
-            for (Statement statement : statements) {
-                execute(statement);
+    // Set on the interpreters that run pfor iterations, which must not write
+    // to globals that other iterations may be reading.
+    private final boolean parallel;
+    // Set on the interpreters that run spawned tasks, which run alongside the
+    // script and each other and so, like pfor iterations, may only modify
+    // what they created.
+    private final boolean task;
+
+    // Locals and parameters of every active call live in one contiguous
+    // stack. The current frame starts at fp; the next call's frame starts at
+    // sp, just past the current frame's slots. Compiled loops
+    // (LoopCompiler) read and write the frame directly.
+    Object[] stack = new Object[256];
+    int fp = 0;
+    private int sp = 0;
+    private int callDepth = 0;
+
+    // The running closure's captured values, and for a function that never
+    // escapes, where its declaring function's frame starts.
+    Object[] captures = null;
+    int link = 0;
+
+    // A return statement records its value and unwinds by having every
+    // statement loop stop early, rather than by throwing.
+    boolean returning = false;
+    private Object returnValue = null;
+
+    double unboxed;
+
+    Interpreter() {
+        this(System.out);
+    }
+
+    Interpreter(PrintStream out) {
+        this.out = out;
+        this.globals = new Globals();
+        this.tasks = new Tasks();
+        this.readers = ConcurrentHashMap.newKeySet();
+        this.writers = ConcurrentHashMap.newKeySet();
+        this.cancellation = new AtomicReference<>();
+        this.parallel = false;
+        this.task = false;
+        Natives.define(globals);
+    }
+
+    /**
+     * An interpreter for a spawned task or for one worker of a pfor, sharing
+     * the globals, tasks and output of the one that started it but with its
+     * own stack.
+     */
+    Interpreter(Interpreter parent, boolean parallel) {
+        this(parent, parallel, false);
+    }
+
+    private Interpreter(Interpreter parent, boolean parallel, boolean task) {
+        this.out = parent.out;
+        this.globals = parent.globals;
+        this.tasks = parent.tasks;
+        this.readers = parent.readers;
+        this.writers = parent.writers;
+        this.cancellation = parent.cancellation;
+        this.parallel = parallel;
+        this.task = task;
+    }
+
+    /**
+     * Asks the script to stop, from any thread. It, its tasks and its pfor
+     * workers each stop with a runtime error at their next loop iteration or
+     * call; one blocked on a channel only stops once it wakes up.
+     */
+    void cancel(String message) {
+        cancellation.compareAndSet(null, message);
+    }
+
+    void checkCancelled(Token site) {
+        String message = cancellation.get();
+        if (message != null) throw new RuntimeError(site, message);
+    }
+
+    LoxReader openReader(String path) throws IOException {
+        LoxReader reader = new LoxReader(path);
+        readers.add(reader);
+        return reader;
+    }
+
+    void closeReader(LoxReader reader) throws IOException {
+        readers.remove(reader);
+        reader.close();
+    }
+
+    LoxWriter openWriter(String path) throws IOException {
+        LoxWriter writer = new LoxWriter(path);
+        writers.add(writer);
+        return writer;
+    }
+
+    void closeWriter(LoxWriter writer) throws IOException {
+        writers.remove(writer);
+        writer.close();
+    }
+
+    /**
+     * Writes out what writers the script left open still hold, even after a
+     * runtime error, and closes them and the readers it left open once the
+     * script is done, releasing their file channels. A REPL keeps them open
+     * for the lines that follow.
+     */
+    private void finishFiles(boolean close) {
+        if (close) {
+            for (LoxReader reader : readers) {
+                try {
+                    closeReader(reader);
+                } catch (IOException e) {
+                    System.err.println(String.format("I/O error: %s", e.getMessage()));
+                    Lox.hadRuntimeError = true;
+                }
+            }
+        }
+        for (LoxWriter writer : writers) {
+            try {
+                if (close) {
+                    closeWriter(writer);
+                } else {
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                System.err.println(String.format("I/O error: %s", e.getMessage()));
+                Lox.hadRuntimeError = true;
             }
-        } catch (RuntimeError error) {
-            Lox.runtimeError(error);
         }
     }
 
-    void interpretREPL(List<Statement> statements) {
+    /**
+     * What a list, map, instance or box made now belongs to: this interpreter
+     * when it runs pfor iterations or a task, otherwise nothing.
+     */
+    Interpreter owner() {
+        return parallel || task ? this : null;
+    }
+
+    /**
+     * Inside a pfor or a task only what the iteration or task made itself may
+     * change. Lists, maps, instances and captured variables from outside are
+     * shared with code running on other threads and are not safe to change
+     * from several at once, so they are read-only there.
+     */
+    void checkWritable(Token site, Interpreter owner, String kind) {
+        if ((parallel || task) && owner != this) {
+            throw new RuntimeError(site, String.format(
+                    "Can't modify %s created outside the %s.", kind, parallel ? "pfor" : "task"));
+        }
+    }
+
+    /**
+     * Runs a resolved script; slots is the size of its top-level frame as
+     * returned by {@link Resolver#resolve}.
+     */
+    void interpret(List<Statement> statements, int slots, boolean repl) {
+        LoxEvents.PhaseEvent event = LoxEvents.enabled() ? new LoxEvents.PhaseEvent("execute") : null;
+        if (event != null) event.begin();
+
+        this.repl = repl;
+        fp = 0;
+        sp = slots;
+        callDepth = 0;
+        captures = null;
+        link = 0;
+        ensureStack(sp);
         try {
             for (Statement statement : statements) {
                 execute(statement);
@@ -30,42 +217,152 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
         }
-    }
+        Arrays.fill(stack, 0, sp, null);
+        // A script is done once the tasks it spawned are; a REPL line is not
+        // held up by them.
+        if (!repl) tasks.awaitAll();
+        finishFiles(!repl);
 
-    void interpret(Expression expression) {
-        try {
-            Object value = evaluate(expression);
-            System.out.println(stringify(value));
-        } catch (RuntimeError error) {
-            Lox.runtimeError(error);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.nodes = LoxEvents.countNodes(statements);
+                event.commit();
+            }
         }
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null)
             return "nil";
 
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
+        if (Numbers.isNumber(object)) {
+            return Numbers.stringify(object);
         }
 
         return object.toString();
     }
 
+    /**
+     * Stringifies an element of a list or map being printed. enclosing holds
+     * the lists and maps it is inside of, and one of those printed again
+     * inside itself becomes [...] or {...}, so a cycle through lists and maps
+     * prints rather than recursing until the stack runs out.
+     */
+    static String stringify(Object object, Set<Object> enclosing) {
+        if (object instanceof LoxList) return ((LoxList) object).toString(enclosing);
+        if (object instanceof LoxMap) return ((LoxMap) object).toString(enclosing);
+        return stringify(object);
+    }
+
+    static Set<Object> enclosing() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
     @Override
     public Object visitBinaryExpression(Binary expression) {
+        if (expression.indexed) {
+            Object left = operand(expression.left);
+            double a = unboxed;
+            Object right = operand(expression.right);
+            return indexedBinary(expression, left, a, right, unboxed);
+        }
         Object left = evaluate(expression.left);
-        Token operator = expression.operator;
         Object right = evaluate(expression.right);
+        if (expression.numeric) return numeric(expression.operator, left, right);
+        return binary(expression.operator, left, right);
+    }
+
+    private Object operand(Expression expression) {
+        if (!(expression instanceof Index)) return evaluate(expression);
+        Index read = (Index) expression;
+        Object object = evaluate(read.object);
+        return element(read, object, evaluate(read.index));
+    }
+
+    /**
+     * Reads an operand of an indexed binary node that indexes a list or map.
+     * An element of a numeric list is left in {@link #unboxed} and UNBOXED
+     * returned in its place, so it is never boxed.
+     */
+    Object element(Index read, Object object, Object index) {
+        if (object instanceof LoxList) {
+            LoxList list = (LoxList) object;
+            int position = list.index(read.bracket, index);
+            if (!list.isNumeric()) return list.get(position);
+            unboxed = list.number(position);
+            return UNBOXED;
+        }
+        return index(read, object, index);
+    }
+
+    /**
+     * Applies an operator TypeInference marked indexed, where either operand
+     * may be UNBOXED with its value in a or b. When both are numbers the
+     * operator works on doubles, which gives the result the Long arithmetic
+     * in Numbers would for the same values; otherwise the elements are boxed
+     * after all and it goes the usual way, errors included.
+     */
+    Object indexedBinary(Binary expression, Object left, double a, Object right, double b) {
+        if (left == UNBOXED || right == UNBOXED) {
+            boolean numbers = (left == UNBOXED || Numbers.isNumber(left)) && (right == UNBOXED || Numbers.isNumber(right));
+            if (numbers) {
+                double x = left == UNBOXED ? a : Numbers.toDouble(left);
+                double y = right == UNBOXED ? b : Numbers.toDouble(right);
+                switch (expression.operator.type) {
+                    case PLUS:
+                        return Numbers.valueOf(x + y);
+                    case MINUS:
+                        return Numbers.valueOf(x - y);
+                    case STAR:
+                        return Numbers.valueOf(x * y);
+                    case GREATER:
+                        return x > y;
+                    case GREATER_EQUAL:
+                        return x >= y;
+                    case LESS:
+                        return x < y;
+                    default:
+                        return x <= y;
+                }
+            }
+            if (left == UNBOXED) left = Numbers.valueOf(a);
+            if (right == UNBOXED) right = Numbers.valueOf(b);
+        }
+        if (expression.numeric) return numeric(expression.operator, left, right);
+        return binary(expression.operator, left, right);
+    }
+
+    /**
+     * A binary operator whose operands TypeInference has proven are numbers,
+     * so only division still has something to check.
+     */
+    Object numeric(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case MINUS:
+                return Numbers.subtract(left, right);
+            case STAR:
+                return Numbers.multiply(left, right);
+            case PLUS:
+                return Numbers.add(left, right);
+            case GREATER:
+                return Numbers.less(right, left);
+            case LESS_EQUAL:
+                return Numbers.lessEqual(left, right);
+            case LESS:
+                return Numbers.less(left, right);
+            case GREATER_EQUAL:
+                return Numbers.lessEqual(right, left);
+            default:
+                return binary(operator, left, right);
+        }
+    }
 
+    Object binary(Token operator, Object left, Object right) {
         switch (operator.type) {
             case MINUS:
                 mustBeNumerical(operator, left, right);
-                return (double) left - (double) right;
+                return Numbers.subtract(left, right);
             case SLASH:
                 return handleSlash(operator, left, right);
             case STAR:
@@ -78,16 +375,16 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
                 return isEqual(left, right);
             case GREATER:
                 mustBeNumerical(operator, left, right);
-                return (double) left > (double) right;
+                return Numbers.less(right, left);
             case LESS_EQUAL:
                 mustBeNumerical(operator, left, right);
-                return (double) left <= (double) right;
+                return Numbers.lessEqual(left, right);
             case LESS:
                 mustBeNumerical(operator, left, right);
-                return (double) left < (double) right;
+                return Numbers.less(left, right);
             case GREATER_EQUAL:
                 mustBeNumerical(operator, left, right);
-                return (double) left >= (double) right;
+                return Numbers.lessEqual(right, left);
             default:
                 break;
         }
@@ -99,65 +396,70 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
             return true;
         if (left == null)
             return false;
+        // Ropes are only equal to other strings by content.
+        if (left instanceof Rope)
+            left = left.toString();
+        if (right instanceof Rope)
+            right = right.toString();
+        // Integers and doubles with the same value are the same Lox number.
+        if (Numbers.isNumber(left) && Numbers.isNumber(right))
+            return Numbers.equal(left, right);
         // TODO: add warning mentioning only like-typed objects can be equal
         return left.equals(right);
     }
 
-    private void mustBeNumerical(Token operator, Object... objects) {
-        for (Object object : objects) {
-            if (!(object instanceof Double)) {
-                throw new RuntimeError(operator, "Operator can only be used with numbers.");
-            }
+    private void mustBeNumerical(Token operator, Object left, Object right) {
+        if (!Numbers.isNumber(left) || !Numbers.isNumber(right)) {
+            throw new RuntimeError(operator, "Operator can only be used with numbers.");
         }
     }
 
     private Object handlePlus(Token operator, Object left, Object right) {
-        if ((left instanceof Double) && (right instanceof Double)) {
-            return (double) left + (double) right;
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) {
+            return Numbers.add(left, right);
         }
 
-        if ((left instanceof String) && (right instanceof String)) {
-            return (String) left + (String) right;
+        if (Rope.isString(left) && Rope.isString(right)) {
+            return Rope.concat(operator, left, right);
         }
         throw new RuntimeError(operator, "Cannot add Objects of different types");
     }
 
     private Object handleStar(Token operator, Object left, Object right) {
-        if ((left instanceof Double) && (right instanceof Double)) {
-            return (double) left * (double) right;
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) {
+            return Numbers.multiply(left, right);
         }
 
-        if ((left instanceof String) && (right instanceof Double)) {
-            return multiplyString(operator, (String) left, (double) right);
+        if (Rope.isString(left) && Numbers.isNumber(right)) {
+            return multiplyString(operator, left, right);
         }
 
-        if ((left instanceof Double) && (right instanceof String)) {
-            return multiplyString(operator, (String) right, (double) left);
+        if (Numbers.isNumber(left) && Rope.isString(right)) {
+            return multiplyString(operator, right, left);
         }
         throw new RuntimeError(operator, "Cannot multiply given Objects");
     }
 
-    private String multiplyString(Token operator, String str, double multiple) {
+    private Object multiplyString(Token operator, Object str, Object multiple) {
+        if (multiple instanceof Long) {
+            return Rope.repeat(operator, str, (long) multiple);
+        }
         if ((double) multiple % 1 != 0) {
             throw new RuntimeError(operator, "Cannot multiply string with a non-integer");
         }
 
-        StringBuilder multipliedString = new StringBuilder();
-        for (int i = 0; i < multiple; i++) {
-            multipliedString.append(str);
-        }
-        return multipliedString.toString();
+        return Rope.repeat(operator, str, (long) (double) multiple);
     }
 
     private Object handleSlash(Token operator, Object left, Object right) {
 
         mustBeNumerical(operator, left, right);
 
-        if ((double) right == 0) {
+        if (Numbers.isZero(right)) {
             throw new RuntimeError(operator, "Cannot Divide by 0");
         }
 
-        return (double) left / (double) right;
+        return Numbers.divide(left, right);
 
     }
 
@@ -173,13 +475,16 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
 
     @Override
     public Object visitUnaryExpression(Unary expression) {
-        Object right = expression.right;
+        Object right = evaluate(expression.right);
 
         switch (expression.operator.type) {
             case BANG:
                 return !isTruthy(right);
             case MINUS:
-                return -(double) right;
+                if (!expression.numeric && !Numbers.isNumber(right)) {
+                    throw new RuntimeError(expression.operator, "Operator can only be used with numbers.");
+                }
+                return Numbers.negate(right);
             default:
                 break;
         }
@@ -189,10 +494,23 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
 
     @Override
     public Object visitVariableExpression(Variable expression) {
-        return environment.get(expression.name);
+        if (expression.slot >= 0) {
+            Object value = stack[(expression.linked ? link : fp) + expression.slot];
+            return expression.boxed ? ((Box) value).value : value;
+        }
+        if (expression.capture >= 0) {
+            Object value = captures[expression.capture];
+            return expression.boxed ? ((Box) value).value : value;
+        }
+
+        Globals.Cell cell = expression.cell;
+        if (cell == null || cell.owner != globals) {
+            expression.cell = cell = globals.cell(expression.name.lexeme);
+        }
+        return cell.get(expression.name);
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null)
             return false;
         if (object instanceof Boolean)
@@ -200,11 +518,11 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
         return true;
     }
 
-    private Object evaluate(Expression expression) {
+    Object evaluate(Expression expression) {
         return expression.accept(this);
     }
 
-    private void execute(Statement statement) {
+    void execute(Statement statement) {
         statement.accept(this);
     }
 
@@ -212,7 +530,7 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
     public Void visitExpressionStatement(Statement.Expression statement) {
         Object value = evaluate(statement.expression);
         if (repl) {
-            System.out.println(stringify(value));
+            out.println(stringify(value));
         }
         return null;
     }
@@ -220,40 +538,104 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
     @Override
     public Void visitPrintStatement(Print statement) {
         Object value = evaluate(statement.expression);
-        System.out.println(stringify(value));
+        out.println(stringify(value));
         return null;
     }
 
     @Override
     public Void visitVarStatement(Var statement) {
         Object value = statement.initializer != null ? evaluate(statement.initializer) : null;
-        environment.define(statement.name.lexeme, value);
+        if (statement.slot >= 0) {
+            stack[fp + statement.slot] = statement.boxed ? new Box(value, owner()) : value;
+            return null;
+        }
+
+        Globals.Cell cell = statement.cell;
+        if (cell == null || cell.owner != globals) {
+            statement.cell = cell = globals.cell(statement.name.lexeme);
+        }
+        cell.define(value);
         return null;
     }
 
     @Override
     public Object visitAssignExpression(Assign expression) {
         Object value = evaluate(expression.value);
-        environment.assign(expression.name, value);
+        if (expression.slot >= 0) {
+            int index = (expression.linked ? link : fp) + expression.slot;
+            if (expression.boxed) {
+                ((Box) stack[index]).value = value;
+            } else {
+                stack[index] = value;
+            }
+            return value;
+        }
+        if (expression.capture >= 0) {
+            // A captured variable that is assigned is always boxed.
+            Box box = (Box) captures[expression.capture];
+            checkWritable(expression.name, box.owner, "a variable");
+            box.value = value;
+            return value;
+        }
+
+        if (parallel) {
+            throw new RuntimeError(expression.name,
+                    String.format("Can't assign to global variable %s inside pfor.", expression.name.lexeme));
+        }
+        Globals.Cell cell = expression.cell;
+        if (cell == null || cell.owner != globals) {
+            expression.cell = cell = globals.cell(expression.name.lexeme);
+        }
+        cell.assign(expression.name, value);
         return value;
     }
 
     @Override
     public Void visitBlockStatement(Statement.Block statement) {
-        executeBlock(statement.statements, new Environment(environment));
+        // The block's variables already have slots in the current frame.
+        executeBlock(statement.statements);
         return null;
     }
 
-    private void executeBlock(List<Statement> statements, Environment environment) {
-        Environment previous = this.environment;
-        try {
-            this.environment = environment;
+    @Override
+    public Void visitLazyBlockStatement(LazyBlock statement) {
+        List<Statement> statements = statement.statements;
+        if (statements == null) statements = expand(statement);
+        executeBlock(statements);
+        return null;
+    }
 
-            for (Statement statement : statements) {
-                execute(statement);
+    /**
+     * Parses and resolves a lazy block the first time any task runs it.
+     */
+    private List<Statement> expand(LazyBlock statement) {
+        synchronized (statement) {
+            if (statement.statements == null) {
+                List<Statement> statements = statement.parsed != null
+                        ? statement.parsed
+                        : RecursiveParser.parseBody(statement.brace, statement.tokens);
+                statement.parsed = null;
+                if (statements == null || !Resolver.resolveDeferred(statement, statements)) {
+                    throw new RuntimeError(statement.brace, "Syntax error in block.");
+                }
+                statement.statements = statements;
             }
-        } finally {
-            this.environment = previous;
+            return statement.statements;
+        }
+    }
+
+    @Override
+    public Void visitInstrumentedStatement(Instrumented statement) {
+        statement.probe.before(this, statement);
+        execute(statement.statement);
+        statement.probe.after(this, statement);
+        return null;
+    }
+
+    private void executeBlock(List<Statement> statements) {
+        for (Statement statement : statements) {
+            execute(statement);
+            if (returning) return;
         }
     }
 
@@ -284,11 +666,580 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
 
     @Override
     public Void visitWhileStatement(While statement) {
+        LoxEvents.LoopEvent event = LoxEvents.enabled() ? new LoxEvents.LoopEvent() : null;
+        if (event != null) event.begin();
+
+        long iterations = 0;
+        boolean compiles = compilesLoops();
+        if (compiles && statement.compiled != null) {
+            statement.compiled.run(this);
+        } else {
+            while (isTruthy(evaluate(statement.condition))) {
+                checkCancelled(statement.keyword);
+                execute(statement.body);
+                iterations++;
+                if (returning) break;
+                if (!compiles) continue;
+                if (statement.compiled == null && ++statement.backEdges >= TIER_UP_THRESHOLD) tierUp(statement);
+                if (statement.compiled != null) {
+                    // The frame is already where compiled code looks for it,
+                    // so it carries on from the next iteration.
+                    statement.compiled.run(this);
+                    break;
+                }
+            }
+        }
+
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.line = new NodeLines().of(statement);
+                event.iterations = iterations;
+                event.commit();
+            }
+        }
+        return null;
+    }
+
+    private void tierUp(While statement) {
+        LoxEvents.TierUpEvent event = LoxEvents.enabled() ? new LoxEvents.TierUpEvent() : null;
+        if (event != null) event.begin();
+        statement.compiled = LoopCompiler.compile(statement);
+
+        int line = new NodeLines().of(statement);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.line = line;
+                event.backEdges = statement.backEdges;
+                event.commit();
+            }
+        }
+        if (LOG_TIER_UP) {
+            System.err.println(String.format("[tier-up] loop at line %d compiled after %d iterations",
+                    line, statement.backEdges));
+        }
+    }
+
+    /**
+     * Whether hot loops may move to the compiled tier, which skips
+     * {@link #evaluate} and {@link #execute} for the nodes it compiles.
+     */
+    boolean compilesLoops() {
+        return !repl;
+    }
+
+    @Override
+    public Void visitParallelForStatement(ParallelFor statement) {
+        Object from = evaluate(statement.from);
+        Object to = evaluate(statement.to);
+        if (!Numbers.isNumber(from) || !Numbers.isNumber(to)) {
+            throw new RuntimeError(statement.keyword, "pfor bounds must be numbers.");
+        }
+        double span = Math.ceil(Numbers.toDouble(to) - Numbers.toDouble(from));
+        long count = span > 0 ? (long) span : 0;
+
+        List<Variable> targets = statement.targets;
+        Object[] initial = new Object[targets.size()];
+        for (int i = 0; i < initial.length; i++) {
+            initial[i] = evaluate(targets.get(i));
+            if (!Numbers.isNumber(initial[i])) {
+                throw new RuntimeError(targets.get(i).name, "Reduction variables must be numbers.");
+            }
+        }
+        if (count == 0) return null;
+
+        Object[] results = ParallelLoop.run(this, statement, closure(statement.body), from, count);
+        for (int i = 0; i < initial.length; i++) {
+            store(targets.get(i), ParallelLoop.combine(statement.operators.get(i), initial[i], results[i]));
+        }
+        return null;
+    }
+
+    /**
+     * Runs iterations start to end of a pfor body as one worker and returns
+     * the worker's values of the reduction variables.
+     */
+    Object[] iterate(ParallelFor statement, LoxFunction body, Object from, long start, long end) {
+        Function declaration = body.declaration;
+        int reductions = statement.targets.size();
+        boolean[] boxed = new boolean[reductions + 1];
+        for (int param : declaration.boxedParams) {
+            boxed[param] = true;
+        }
+
+        // The loop variable is slot 0 and the reduction variables follow it;
+        // they stay in the frame from one iteration to the next.
+        ensureStack(declaration.frameSize);
+        fp = 0;
+        sp = declaration.frameSize;
+        captures = body.captures;
+        link = 0;
+        for (int i = 0; i < reductions; i++) {
+            Object identity = ParallelLoop.identity(statement.operators.get(i));
+            stack[i + 1] = boxed[i + 1] ? new Box(identity, owner()) : identity;
+        }
+        for (long i = start; i < end; i++) {
+            checkCancelled(statement.keyword);
+            Object value = Numbers.add(from, i);
+            stack[0] = boxed[0] ? new Box(value, owner()) : value;
+            executeBlock(declaration.body);
+        }
+
+        Object[] values = new Object[reductions];
+        for (int i = 0; i < reductions; i++) {
+            Object value = stack[i + 1];
+            values[i] = boxed[i + 1] ? ((Box) value).value : value;
+        }
+        return values;
+    }
+
+    @Override
+    public Void visitSpawnStatement(Spawn statement) {
+        Object callee;
+        List<Object> arguments = new ArrayList<>();
+        Token site;
+        if (statement.body != null) {
+            callee = closure(statement.body);
+            site = statement.keyword;
+        } else {
+            callee = evaluate(statement.call.callee);
+            for (Expression argument : statement.call.arguments) {
+                arguments.add(evaluate(argument));
+            }
+            site = statement.call.paren;
+        }
+
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(site, "Can only spawn functions and classes.");
+        }
+        LoxCallable callable = (LoxCallable) callee;
+        checkArity(site, callable.arity(), arguments.size());
+
+        // A task spawned by a pfor iteration keeps the pfor's rules too.
+        Interpreter task = new Interpreter(this, parallel, true);
+        if (!tasks.spawn(() -> task.run(site, callable, arguments))) {
+            throw new RuntimeError(site, String.format(
+                    "Can't run more than %d tasks at once without virtual threads (Java 21).", Tasks.MAX_THREADS));
+        }
+        return null;
+    }
+
+    /**
+     * The body of a spawned task. An error ends only the task that hit it,
+     * and is reported even if it is not a Lox error, since nothing else would
+     * notice the task died.
+     */
+    private void run(Token site, LoxCallable callable, List<Object> arguments) {
+        try {
+            callable.call(this, arguments);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error.token != null ? error : new RuntimeError(site, error.getMessage()));
+        } catch (RuntimeException e) {
+            Lox.runtimeError(new RuntimeError(site, String.format("Internal error: %s", e)));
+        }
+    }
+
+    private void store(Variable target, Object value) {
+        if (target.slot >= 0) {
+            int index = (target.linked ? link : fp) + target.slot;
+            if (target.boxed) {
+                ((Box) stack[index]).value = value;
+            } else {
+                stack[index] = value;
+            }
+        } else if (target.capture >= 0) {
+            ((Box) captures[target.capture]).value = value;
+        } else {
+            target.cell.assign(target.name, value);
+        }
+    }
+
+    @Override
+    public Void visitFunctionStatement(Function statement) {
+        // Only ever called directly; there is nothing to create.
+        if (!statement.escapes) return null;
+
+        Box box = null;
+        if (statement.boxed) {
+            // The closure may capture its own box, so it must exist first.
+            box = new Box(null, owner());
+            stack[fp + statement.slot] = box;
+        }
+
+        // A function that captures nothing is the same object every time its
+        // declaration runs.
+        LoxFunction function = statement.function;
+        if (function == null) {
+            function = closure(statement);
+            if (statement.captures.length == 0) statement.function = function;
+        }
+
+        if (statement.slot >= 0) {
+            if (box != null) {
+                box.value = function;
+            } else {
+                stack[fp + statement.slot] = function;
+            }
+            return null;
+        }
+
+        Globals.Cell cell = statement.cell;
+        if (cell == null || cell.owner != globals) {
+            statement.cell = cell = globals.cell(statement.name.lexeme);
+        }
+        cell.define(function);
+        return null;
+    }
+
+    LoxFunction closure(Function statement) {
+        LoxFunction.Capture[] sources = statement.captures;
+        Object[] values = new Object[sources.length];
+        LoxFunction function = new LoxFunction(statement, values);
+        for (int i = 0; i < sources.length; i++) {
+            LoxFunction.Capture source = sources[i];
+            switch (source.kind) {
+                case LoxFunction.Capture.SLOT: values[i] = stack[fp + source.index]; break;
+                case LoxFunction.Capture.LINKED_SLOT: values[i] = stack[link + source.index]; break;
+                case LoxFunction.Capture.CAPTURE: values[i] = captures[source.index]; break;
+                default: values[i] = function; break;
+            }
+        }
+        return function;
+    }
+
+    @Override
+    public Void visitClassStatement(Statement.Class statement) {
+        LoxClass superclass = null;
+        if (statement.superclass != null) {
+            Object value = evaluate(statement.superclass);
+            if (!(value instanceof LoxClass)) {
+                throw new RuntimeError(statement.superclass.name, "Superclass must be a class.");
+            }
+            superclass = (LoxClass) value;
+            stack[fp + statement.superSlot] = superclass;
+        }
+
+        // The class is bound before its methods are created, so methods that
+        // capture the class's own name copy the class rather than nil.
+        LoxClass klass = new LoxClass(statement.name.lexeme, superclass);
+        if (statement.slot >= 0) {
+            stack[fp + statement.slot] = statement.boxed ? new Box(klass, owner()) : klass;
+        } else {
+            Globals.Cell cell = statement.cell;
+            if (cell == null || cell.owner != globals) {
+                statement.cell = cell = globals.cell(statement.name.lexeme);
+            }
+            cell.define(klass);
+        }
+
+        for (Function method : statement.methods) {
+            klass.define(closure(method));
+        }
+        if (statement.superclass != null) stack[fp + statement.superSlot] = null;
+        return null;
+    }
+
+    @Override
+    public Object visitGetExpression(Get expression) {
+        LoxInstance instance = instance(expression.object, expression.name);
+        InlineCache.Entry entry = property(expression, instance);
+        if (entry.method != null) return entry.method.bind(instance);
+        return instance.fields[entry.index];
+    }
+
+    @Override
+    public Object visitSetExpression(Expression.Set expression) {
+        Object object = evaluate(expression.object);
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(expression.name, "Only instances have fields.");
+        }
+        LoxInstance instance = (LoxInstance) object;
+        Object value = evaluate(expression.value);
+        checkWritable(expression.name, instance.owner, "an instance");
+
+        InlineCache cache = expression.cache;
+        InlineCache.Entry entry = cache.find(instance.shape);
+        if (entry == null) {
+            entry = InlineCache.set(instance.shape, expression.name.lexeme);
+            expression.cache = cache.with(entry);
+        }
+        instance.put(entry.index, entry.transition, value);
+        return value;
+    }
+
+    @Override
+    public Object visitListLiteralExpression(ListLiteral expression) {
+        LoxList list = new LoxList(expression.elements.size());
+        list.owner = owner();
+        for (Expression element : expression.elements) {
+            list.append(evaluate(element));
+        }
+        return list;
+    }
+
+    @Override
+    public Object visitIndexExpression(Index expression) {
+        Object object = evaluate(expression.object);
+        return index(expression, object, evaluate(expression.index));
+    }
+
+    private Object index(Index expression, Object object, Object index) {
+        if (object instanceof LoxList) {
+            LoxList list = (LoxList) object;
+            return list.get(list.index(expression.bracket, index));
+        }
+        if (object instanceof LoxMap) return ((LoxMap) object).get(index);
+        throw new RuntimeError(expression.bracket, "Only lists and maps can be indexed.");
+    }
+
+    @Override
+    public Object visitIndexAssignExpression(IndexAssign expression) {
+        Object object = evaluate(expression.object);
+        Object index = evaluate(expression.index);
+        Object value = evaluate(expression.value);
+        if (object instanceof LoxList) {
+            LoxList list = (LoxList) object;
+            checkWritable(expression.bracket, list.owner, "a list");
+            list.set(list.index(expression.bracket, index), value);
+        } else if (object instanceof LoxMap) {
+            LoxMap map = (LoxMap) object;
+            checkWritable(expression.bracket, map.owner, "a map");
+            map.put(index, value);
+        } else {
+            throw new RuntimeError(expression.bracket, "Only lists and maps can be indexed.");
+        }
+        return value;
+    }
 
-        while (isTruthy(evaluate(statement.condition))) {
-            execute(statement.body);
+    @Override
+    public Object visitThisExpression(This expression) {
+        if (expression.capture >= 0) return captures[expression.capture];
+        return stack[(expression.linked ? link : fp) + expression.slot];
+    }
+
+    @Override
+    public Object visitSuperExpression(Super expression) {
+        return superMethod(expression).bind(evaluate(expression.receiver));
+    }
+
+    private LoxInstance instance(Expression object, Token name) {
+        Object value = evaluate(object);
+        if (!(value instanceof LoxInstance)) {
+            throw new RuntimeError(name, "Only instances have properties.");
         }
+        return (LoxInstance) value;
+    }
 
+    private InlineCache.Entry property(Get expression, LoxInstance instance) {
+        InlineCache cache = expression.cache;
+        InlineCache.Entry entry = cache.find(instance.shape);
+        if (entry == null) {
+            entry = InlineCache.get(instance.shape, expression.name.lexeme);
+            if (entry == null) {
+                throw new RuntimeError(expression.name,
+                        String.format("Undefined property '%s'.", expression.name.lexeme));
+            }
+            expression.cache = cache.with(entry);
+        }
+        return entry;
+    }
+
+    private LoxFunction superMethod(Super expression) {
+        LoxClass superclass = (LoxClass) evaluate(expression.superclass);
+        LoxFunction method = superclass.findMethod(expression.method.lexeme);
+        if (method == null) {
+            throw new RuntimeError(expression.method,
+                    String.format("Undefined property '%s'.", expression.method.lexeme));
+        }
+        return method;
+    }
+
+    @Override
+    public Void visitReturnStatement(Return statement) {
+        returnValue = statement.value != null ? evaluate(statement.value) : null;
+        returning = true;
         return null;
     }
+
+    @Override
+    public Object visitCallExpression(Call expression) {
+        List<Expression> arguments = expression.arguments;
+
+        Function direct = expression.direct;
+        if (direct != null) {
+            // A function that never escapes shares its declaring function's
+            // captures and reaches its frame through the static link: the
+            // current frame when called from there, else it is calling itself
+            // and keeps the link it has.
+            checkArity(expression.paren, direct.params.size(), arguments.size());
+            int base = pushFrame(direct, arguments);
+            return invoke(expression.paren, direct, captures, expression.fromDeclarer ? fp : link, base);
+        }
+
+        // Method calls pass the receiver straight into slot 0 of the method's
+        // frame instead of creating a bound method first.
+        Object callee;
+        Expression calleeExpression = expression.callee;
+        if (calleeExpression instanceof Get) {
+            Get get = (Get) calleeExpression;
+            LoxInstance instance = instance(get.object, get.name);
+            InlineCache.Entry entry = property(get, instance);
+            if (entry.method != null) return callMethod(expression, entry.method, instance);
+            callee = instance.fields[entry.index];
+        } else if (calleeExpression instanceof Super) {
+            Super method = (Super) calleeExpression;
+            return callMethod(expression, superMethod(method), evaluate(method.receiver));
+        } else {
+            callee = evaluate(calleeExpression);
+        }
+
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction) callee;
+            if (function.declaration.method) return callMethod(expression, function, function.receiver);
+            checkArity(expression.paren, function.arity(), arguments.size());
+            int base = pushFrame(function.declaration, arguments);
+            return invoke(expression.paren, function.declaration, function.captures, link, base);
+        }
+
+        if (callee instanceof LoxClass) {
+            LoxClass klass = (LoxClass) callee;
+            LoxInstance instance = new LoxInstance(klass);
+            instance.owner = owner();
+            LoxFunction initializer = klass.initializer();
+            if (initializer != null) return callMethod(expression, initializer, instance);
+            checkArity(expression.paren, 0, arguments.size());
+            return instance;
+        }
+
+        if (callee instanceof LoxCallable) {
+            LoxCallable callable = (LoxCallable) callee;
+            checkArity(expression.paren, callable.arity(), arguments.size());
+            Object[] values = new Object[arguments.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = evaluate(arguments.get(i));
+            }
+            try {
+                return callable.call(this, Arrays.asList(values));
+            } catch (RuntimeError error) {
+                // Natives report errors without a token of their own.
+                if (error.token != null) throw error;
+                throw new RuntimeError(expression.paren, error.getMessage());
+            }
+        }
+
+        throw new RuntimeError(expression.paren, "Can only call functions and classes.");
+    }
+
+    private Object callMethod(Call expression, LoxFunction method, Object receiver) {
+        checkArity(expression.paren, method.arity(), expression.arguments.size());
+        int base = sp;
+        ensureStack(base + method.declaration.frameSize);
+        stack[sp++] = receiver;
+        for (Expression argument : expression.arguments) {
+            Object value = evaluate(argument);
+            stack[sp++] = value;
+        }
+        return invoke(expression.paren, method.declaration, method.captures, link, base);
+    }
+
+    /**
+     * Evaluates arguments straight into the parameter slots of a new frame
+     * and returns where the frame starts. sp moves past each argument as it
+     * is stored so that calls made while evaluating later arguments build
+     * their frames above it.
+     */
+    private int pushFrame(Function declaration, List<Expression> arguments) {
+        int base = sp;
+        ensureStack(base + declaration.frameSize);
+        for (Expression argument : arguments) {
+            Object value = evaluate(argument);
+            stack[sp++] = value;
+        }
+        return base;
+    }
+
+    /**
+     * Calls a function whose arguments are already in a list, for callers
+     * outside the interpreter's own call expressions.
+     */
+    Object callFunction(LoxFunction function, List<Object> arguments) {
+        int base = sp;
+        ensureStack(base + function.declaration.frameSize);
+        if (function.declaration.method) stack[sp++] = function.receiver;
+        for (Object argument : arguments) {
+            stack[sp++] = argument;
+        }
+        return invoke(function.declaration.name, function.declaration, function.captures, link, base);
+    }
+
+    Object instantiate(LoxClass klass, List<Object> arguments) {
+        LoxInstance instance = new LoxInstance(klass);
+        instance.owner = owner();
+        LoxFunction initializer = klass.initializer();
+        if (initializer != null) callFunction(initializer.bind(instance), arguments);
+        return instance;
+    }
+
+    private Object invoke(Token site, Function declaration, Object[] closure, int staticLink, int base) {
+        if (callDepth == MAX_CALL_DEPTH || cancellation.get() != null) {
+            sp = base;
+            checkCancelled(site);
+            throw new RuntimeError(site, "Stack overflow.");
+        }
+        if (LoxMetrics.ENABLED) LoxMetrics.INSTANCE.call(callDepth);
+
+        // An initializer always returns its receiver, which the frame
+        // cleanup below would otherwise clear.
+        Object receiver = declaration.initializer ? stack[base] : null;
+
+        int callerFp = fp;
+        Object[] callerCaptures = captures;
+        int callerLink = link;
+        fp = base;
+        sp = base + declaration.frameSize;
+        captures = closure;
+        link = staticLink;
+        callDepth++;
+        boxParameters(declaration);
+        try {
+            executeBlock(declaration.body);
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(site, "Stack overflow.");
+        } finally {
+            callDepth--;
+            Arrays.fill(stack, base, sp, null);
+            sp = base;
+            fp = callerFp;
+            captures = callerCaptures;
+            link = callerLink;
+        }
+
+        Object result = declaration.initializer ? receiver : returnValue;
+        returning = false;
+        returnValue = null;
+        return result;
+    }
+
+    /**
+     * Moves the parameters a closure in the body captures into boxes, once
+     * the new frame is current.
+     */
+    void boxParameters(Function declaration) {
+        for (int param : declaration.boxedParams) {
+            stack[fp + param] = new Box(stack[fp + param], owner());
+        }
+    }
+
+    private void checkArity(Token paren, int arity, int count) {
+        if (arity != count) {
+            throw new RuntimeError(paren, String.format("Expected %d arguments but got %d.", arity, count));
+        }
+    }
+
+    private void ensureStack(int size) {
+        if (size > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+        }
+    }
 }
@@ -0,0 +1,285 @@
+package jlox;
+
+import java.util.List;
+
+import jlox.Expression.*;
+import jlox.Statement.*;
+
+/**
+ * The second execution tier. A loop the interpreter finds hot is compiled
+ * into a tree of Java lambdas, one per node, with everything the visitor
+ * would work out on every visit settled once: which slot a local lives in,
+ * whether it is boxed, which operator a binary node applies. Nodes that gain
+ * little from this (calls, property access, globals, declarations) are left
+ * to the interpreter, which the compiled code calls back into.
+ *
+ * Compiled code reads the interpreter's frame as it runs, so it can take over
+ * a loop between two iterations without moving any values.
+ */
+final class LoopCompiler {
+    interface Code {
+        Object run(Interpreter interpreter);
+    }
+
+    interface Step {
+        void run(Interpreter interpreter);
+    }
+
+    private LoopCompiler() {
+    }
+
+    static Step compile(While loop) {
+        Code condition = compile(loop.condition);
+        Step body = compile(loop.body);
+        Token keyword = loop.keyword;
+        return interpreter -> {
+            while (Interpreter.isTruthy(condition.run(interpreter))) {
+                interpreter.checkCancelled(keyword);
+                body.run(interpreter);
+                if (interpreter.returning) return;
+            }
+        };
+    }
+
+    private static Step compile(Statement statement) {
+        if (statement instanceof Statement.Expression) {
+            Code expression = compile(((Statement.Expression) statement).expression);
+            return expression::run;
+        }
+        if (statement instanceof Block) {
+            return block(((Block) statement).statements);
+        }
+        if (statement instanceof If) {
+            If branch = (If) statement;
+            Code condition = compile(branch.condition);
+            Step thenBranch = compile(branch.thenBranch);
+            if (branch.elseBranch == null) {
+                return interpreter -> {
+                    if (Interpreter.isTruthy(condition.run(interpreter))) thenBranch.run(interpreter);
+                };
+            }
+            Step elseBranch = compile(branch.elseBranch);
+            return interpreter -> {
+                if (Interpreter.isTruthy(condition.run(interpreter))) {
+                    thenBranch.run(interpreter);
+                } else {
+                    elseBranch.run(interpreter);
+                }
+            };
+        }
+        if (statement instanceof While) {
+            return compile((While) statement);
+        }
+        if (statement instanceof Var && ((Var) statement).slot >= 0) {
+            Var declaration = (Var) statement;
+            int slot = declaration.slot;
+            boolean boxed = declaration.boxed;
+            if (declaration.initializer == null) {
+                return interpreter -> interpreter.stack[interpreter.fp + slot] =
+                        boxed ? new Box(null, interpreter.owner()) : null;
+            }
+            Code initializer = compile(declaration.initializer);
+            return interpreter -> {
+                Object value = initializer.run(interpreter);
+                interpreter.stack[interpreter.fp + slot] = boxed ? new Box(value, interpreter.owner()) : value;
+            };
+        }
+        return interpreter -> interpreter.execute(statement);
+    }
+
+    private static Step block(List<Statement> statements) {
+        Step[] steps = new Step[statements.size()];
+        for (int i = 0; i < steps.length; i++) {
+            steps[i] = compile(statements.get(i));
+        }
+        return interpreter -> {
+            for (Step step : steps) {
+                step.run(interpreter);
+                if (interpreter.returning) return;
+            }
+        };
+    }
+
+    private static Code compile(Expression expression) {
+        if (expression instanceof Literal) {
+            Object value = ((Literal) expression).value;
+            return interpreter -> value;
+        }
+        if (expression instanceof Grouping) {
+            return compile(((Grouping) expression).expression);
+        }
+        if (expression instanceof Variable) {
+            return variable((Variable) expression);
+        }
+        if (expression instanceof Assign && (((Assign) expression).slot >= 0 || ((Assign) expression).capture >= 0)) {
+            return assign((Assign) expression);
+        }
+        if (expression instanceof Binary) {
+            return binary((Binary) expression);
+        }
+        if (expression instanceof Logical) {
+            Logical logical = (Logical) expression;
+            Code left = compile(logical.left);
+            Code right = compile(logical.right);
+            if (logical.operator.type == TokenType.OR) {
+                return interpreter -> {
+                    Object value = left.run(interpreter);
+                    return Interpreter.isTruthy(value) ? value : right.run(interpreter);
+                };
+            }
+            return interpreter -> {
+                Object value = left.run(interpreter);
+                return !Interpreter.isTruthy(value) ? value : right.run(interpreter);
+            };
+        }
+        if (expression instanceof Unary && ((Unary) expression).operator.type == TokenType.BANG) {
+            Code right = compile(((Unary) expression).right);
+            return interpreter -> !Interpreter.isTruthy(right.run(interpreter));
+        }
+        return interpreter -> interpreter.evaluate(expression);
+    }
+
+    private static Code variable(Variable variable) {
+        int slot = variable.slot;
+        int capture = variable.capture;
+        if (slot >= 0) {
+            if (variable.boxed) {
+                return variable.linked
+                        ? interpreter -> ((Box) interpreter.stack[interpreter.link + slot]).value
+                        : interpreter -> ((Box) interpreter.stack[interpreter.fp + slot]).value;
+            }
+            return variable.linked
+                    ? interpreter -> interpreter.stack[interpreter.link + slot]
+                    : interpreter -> interpreter.stack[interpreter.fp + slot];
+        }
+        if (capture >= 0) {
+            return variable.boxed
+                    ? interpreter -> ((Box) interpreter.captures[capture]).value
+                    : interpreter -> interpreter.captures[capture];
+        }
+        // Globals go through the interpreter, which checks the cached cell
+        // belongs to it.
+        return interpreter -> interpreter.evaluate(variable);
+    }
+
+    private static Code assign(Assign assign) {
+        Code value = compile(assign.value);
+        int slot = assign.slot;
+        int capture = assign.capture;
+        if (slot < 0) {
+            // A captured variable that is assigned is always boxed.
+            return interpreter -> {
+                Object result = value.run(interpreter);
+                Box box = (Box) interpreter.captures[capture];
+                interpreter.checkWritable(assign.name, box.owner, "a variable");
+                box.value = result;
+                return result;
+            };
+        }
+        boolean linked = assign.linked;
+        if (assign.boxed) {
+            return interpreter -> {
+                Object result = value.run(interpreter);
+                ((Box) interpreter.stack[(linked ? interpreter.link : interpreter.fp) + slot]).value = result;
+                return result;
+            };
+        }
+        return interpreter -> {
+            Object result = value.run(interpreter);
+            interpreter.stack[(linked ? interpreter.link : interpreter.fp) + slot] = result;
+            return result;
+        };
+    }
+
+    /**
+     * An operand of an indexed binary node, where an element of a numeric
+     * list is read without boxing it.
+     */
+    private static Code operand(Expression expression) {
+        if (!(expression instanceof Index)) return compile(expression);
+        Index read = (Index) expression;
+        Code object = compile(read.object);
+        Code index = compile(read.index);
+        return interpreter -> {
+            Object value = object.run(interpreter);
+            return interpreter.element(read, value, index.run(interpreter));
+        };
+    }
+
+    /**
+     * Operands TypeInference proved are numbers skip the checks entirely;
+     * otherwise numbers take a direct path for the operator and anything
+     * else, and every error, goes through the interpreter's own handling.
+     */
+    private static Code binary(Binary binary) {
+        if (binary.indexed) {
+            Code left = operand(binary.left);
+            Code right = operand(binary.right);
+            return interpreter -> {
+                Object a = left.run(interpreter);
+                double x = interpreter.unboxed;
+                Object b = right.run(interpreter);
+                return interpreter.indexedBinary(binary, a, x, b, interpreter.unboxed);
+            };
+        }
+        Code left = compile(binary.left);
+        Code right = compile(binary.right);
+        Token operator = binary.operator;
+        if (binary.numeric) {
+            return interpreter -> interpreter.numeric(operator, left.run(interpreter), right.run(interpreter));
+        }
+        switch (operator.type) {
+            case PLUS:
+                return interpreter -> {
+                    Object a = left.run(interpreter);
+                    Object b = right.run(interpreter);
+                    if (Numbers.isNumber(a) && Numbers.isNumber(b)) return Numbers.add(a, b);
+                    return interpreter.binary(operator, a, b);
+                };
+            case MINUS:
+                return interpreter -> {
+                    Object a = left.run(interpreter);
+                    Object b = right.run(interpreter);
+                    if (Numbers.isNumber(a) && Numbers.isNumber(b)) return Numbers.subtract(a, b);
+                    return interpreter.binary(operator, a, b);
+                };
+            case STAR:
+                return interpreter -> {
+                    Object a = left.run(interpreter);
+                    Object b = right.run(interpreter);
+                    if (Numbers.isNumber(a) && Numbers.isNumber(b)) return Numbers.multiply(a, b);
+                    return interpreter.binary(operator, a, b);
+                };
+            case LESS:
+                return interpreter -> {
+                    Object a = left.run(interpreter);
+                    Object b = right.run(interpreter);
+                    if (Numbers.isNumber(a) && Numbers.isNumber(b)) return Numbers.less(a, b);
+                    return interpreter.binary(operator, a, b);
+                };
+            case LESS_EQUAL:
+                return interpreter -> {
+                    Object a = left.run(interpreter);
+                    Object b = right.run(interpreter);
+                    if (Numbers.isNumber(a) && Numbers.isNumber(b)) return Numbers.lessEqual(a, b);
+                    return interpreter.binary(operator, a, b);
+                };
+            case GREATER:
+                return interpreter -> {
+                    Object a = left.run(interpreter);
+                    Object b = right.run(interpreter);
+                    if (Numbers.isNumber(a) && Numbers.isNumber(b)) return Numbers.less(b, a);
+                    return interpreter.binary(operator, a, b);
+                };
+            case GREATER_EQUAL:
+                return interpreter -> {
+                    Object a = left.run(interpreter);
+                    Object b = right.run(interpreter);
+                    if (Numbers.isNumber(a) && Numbers.isNumber(b)) return Numbers.lessEqual(b, a);
+                    return interpreter.binary(operator, a, b);
+                };
+            default:
+                return interpreter -> interpreter.binary(operator, left.run(interpreter), right.run(interpreter));
+        }
+    }
+}
@@ -6,22 +6,136 @@ import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
+    private static final String USAGE = "Usage jlox [--profile[=stacks.collapsed] | --alloc-profile] [--lazy [--strict]] [--prelude=prelude.lox] [--trace] [--break=line,...] [--watch-var=name ...] [script] | jlox --watch [--lazy [--strict]] script | jlox --daemon[=socket] [--lazy [--strict]] | jlox --bench [options] script";
+
+    // Made in main, once the options say which kind.
+    private static Interpreter interpreter;
+    private static AllocationTrackingInterpreter allocationTracker = null;
 
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
     static boolean repl = false;
-    public static void main(String[] args) throws IOException {
-        if(args.length > 1){
-            System.out.println("Usage jlox [script]");
+    // Parse if and while bodies only when they first run; strict still
+    // checks their syntax before the script starts.
+    private static boolean lazy = false;
+    private static boolean strict = false;
+    // Run the script again whenever it is saved.
+    private static boolean watch = false;
+    // Serve scripts over a Unix-domain socket, see Daemon.
+    private static String daemonSocket = null;
+    // Globals to define before the script runs, see Snapshot.
+    private static String prelude = null;
+    // Probes to put around statements of the script, see Instrumentation.
+    private static final List<Instrumentation.Instrument> instruments = new ArrayList<>();
+    public static void main(String[] args) throws InterruptedException {
+        // The main thread's stack runs out long before MAX_CALL_DEPTH, so
+        // everything runs on a thread sized for it.
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                start(args);
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        }, "lox", Interpreter.STACK_SIZE);
+        thread.setUncaughtExceptionHandler((t, e) -> failure[0] = e);
+        thread.start();
+        thread.join();
+        if (failure[0] != null) {
+            failure[0].printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void start(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--bench")) {
+            System.exit(ScriptBenchmark.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        if (LoxMetrics.ENABLED) LoxMetrics.register();
+
+        int first = 0;
+        String profileOutput = null;
+        boolean allocationProfile = false;
+        boolean trace = false;
+        Set<Integer> breakpoints = new LinkedHashSet<>();
+        List<String> watched = new ArrayList<>();
+        for (; first < args.length && args[first].startsWith("--"); first++) {
+            String option = args[first];
+            if (option.equals("--profile")) {
+                profileOutput = "";
+            } else if (option.startsWith("--profile=")) {
+                profileOutput = option.substring("--profile=".length());
+            } else if (option.equals("--alloc-profile")) {
+                allocationProfile = true;
+            } else if (option.equals("--lazy")) {
+                lazy = true;
+            } else if (option.equals("--strict")) {
+                strict = true;
+            } else if (option.equals("--watch")) {
+                watch = true;
+            } else if (option.equals("--trace")) {
+                trace = true;
+            } else if (option.startsWith("--break=") && option.matches("--break=\\d+(,\\d+)*")) {
+                for (String line : option.substring("--break=".length()).split(",")) {
+                    breakpoints.add(Integer.parseInt(line));
+                }
+            } else if (option.startsWith("--watch-var=") && option.length() > "--watch-var=".length()) {
+                watched.add(option.substring("--watch-var=".length()));
+            } else if (option.startsWith("--prelude=")) {
+                prelude = option.substring("--prelude=".length());
+            } else if (option.equals("--daemon")) {
+                daemonSocket = "";
+            } else if (option.startsWith("--daemon=")) {
+                daemonSocket = option.substring("--daemon=".length());
+            } else {
+                System.out.println(USAGE);
+                System.exit(64);
+            }
+        }
+
+        if (trace) instruments.add(new Instrumentation.Trace());
+        if (!breakpoints.isEmpty()) instruments.add(new Instrumentation.Breakpoints(breakpoints));
+        for (String name : watched) {
+            instruments.add(new Instrumentation.Watch(name));
+        }
+
+        if(args.length - first > 1 || (profileOutput != null && allocationProfile)
+                || (watch && (args.length - first != 1 || profileOutput != null || allocationProfile))
+                || (daemonSocket != null && (args.length - first != 0 || watch || profileOutput != null || allocationProfile))
+                || (prelude != null && (args.length - first != 1 || watch))
+                || (!instruments.isEmpty() && (args.length - first != 1 || watch))){
+            System.out.println(USAGE);
             System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        } else if (daemonSocket != null) {
+            new Daemon(daemonSocket.isEmpty() ? Daemon.defaultSocket() : Paths.get(daemonSocket)).serve();
+        } else if (watch) {
+            new Watcher(Paths.get(args[first]), lazy, strict).watch();
+        } else if (args.length - first == 1) {
+            String script = args[first];
+            if (profileOutput != null) {
+                interpreter = new ProfilingInterpreter(profileOutput.isEmpty() ? script + ".collapsed" : profileOutput);
+            } else if (allocationProfile) {
+                allocationTracker = new AllocationTrackingInterpreter();
+                interpreter = allocationTracker;
+            } else {
+                interpreter = new Interpreter();
+            }
+            if (prelude != null) {
+                Snapshot.prelude(Paths.get(prelude), interpreter);
+                exitOnError();
+            }
+            runFile(script);
         } else {
             repl = true;
+            interpreter = new Interpreter();
             runPrompt();
         }
     }
@@ -29,6 +143,10 @@ public class Lox {
     private static void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
         run(new String(bytes, Charset.defaultCharset()));
+        exitOnError();
+    }
+
+    private static void exitOnError() {
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
@@ -47,18 +165,34 @@ public class Lox {
     }
 
     private static void run(String source) {
-        List<Statement> statements = getStatements(source);
-        if (hadError) return;
-        interpreter.interpret(statements, repl);
+        run(source, interpreter);
     }
 
-    private static List<Statement> getStatements(String source){
+    static void run(String source, Interpreter interpreter) {
+        long start = LoxMetrics.ENABLED ? System.nanoTime() : 0;
         Scanner scanner = new Scanner(source);
         List<Token> tokens = scanner.scanTokens();
+        if (allocationTracker != null) allocationTracker.countTokens(tokens);
 
-        RecursiveParser recursiveParser = new RecursiveParser(tokens);
+        long scanned = LoxMetrics.ENABLED ? System.nanoTime() : 0;
+        // Lazy blocks would hide their statements from Instrumentation.
+        RecursiveParser recursiveParser = new RecursiveParser(tokens, lazy && instruments.isEmpty(), strict);
         List<Statement> statements = recursiveParser.parse();
-        return statements;
+
+        int slots = 0;
+        if (!hadError) {
+            if (!instruments.isEmpty()) new Instrumentation(source, instruments).instrument(statements);
+            slots = new Resolver().resolve(statements);
+        }
+
+        long parsed = LoxMetrics.ENABLED ? System.nanoTime() : 0;
+        if (!hadError) {
+            interpreter.interpret(statements, slots, repl);
+        }
+
+        if (LoxMetrics.ENABLED) {
+            LoxMetrics.INSTANCE.scriptRun(scanned - start, parsed - scanned, System.nanoTime() - parsed);
+        }
     }
 
     static void error(int line, String message) {
@@ -76,10 +210,26 @@ public class Lox {
     private static void report(int line, String where, String message) {
         System.err.println(String.format("[line %2d] Error%s: %s", line, where, message));
         hadError = true;
+        if (LoxMetrics.ENABLED) LoxMetrics.INSTANCE.compileError();
     }
 
     public static void runtimeError(RuntimeError error) {
-        System.err.println(String.format(error.getMessage(),"\n[line %2d]", error.token.line));
+        // Every runtime error should reach here with the token it happened
+        // at; line 0 only stands in for one that slipped through without.
+        int line = error.token != null ? error.token.line : 0;
+        // The message can hold a script's own text, such as a path, so it is
+        // printed as it is rather than used as a format.
+        System.err.println(error.getMessage() + String.format("%n[line %2d]", line));
         hadRuntimeError = true;
+
+        if (LoxEvents.enabled()) {
+            LoxEvents.RuntimeErrorEvent event = new LoxEvents.RuntimeErrorEvent();
+            if (event.shouldCommit()) {
+                event.line = line;
+                event.message = error.getMessage();
+                event.commit();
+            }
+        }
+        if (LoxMetrics.ENABLED) LoxMetrics.INSTANCE.runtimeError();
     }
 }
\ No newline at end of file
@@ -0,0 +1,188 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue that tasks use to hand values to each other. Sending to a
+ * full channel or receiving from an empty one blocks. Blocking goes through
+ * {@link ReentrantLock} rather than synchronized, since a virtual thread
+ * waiting on a monitor keeps its carrier thread.
+ *
+ * A closed channel refuses new values; receiving from it drains what is left
+ * and then returns nil.
+ */
+final class LoxChannel {
+    private static final Object EMPTY = new Object();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Object[] buffer;
+    private int head = 0;
+    private int count = 0;
+    private boolean closed = false;
+
+    // Selects waiting on this channel among others.
+    private final List<Waiter> waiters = new ArrayList<>();
+
+    LoxChannel(int capacity) {
+        this.buffer = new Object[capacity];
+    }
+
+    void send(Object value) {
+        lock.lock();
+        try {
+            while (count == buffer.length && !closed) {
+                notFull.awaitUninterruptibly();
+            }
+            if (closed) throw new RuntimeError(null, "Can't send on a closed channel.");
+            buffer[(head + count) % buffer.length] = value;
+            count++;
+            notEmpty.signal();
+            wakeWaiters();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Object receive() {
+        lock.lock();
+        try {
+            while (count == 0 && !closed) {
+                notEmpty.awaitUninterruptibly();
+            }
+            return count > 0 ? take() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+            wakeWaiters();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until one of the channels has a value or is closed, and returns
+     * a two-element list of that channel and the value received from it.
+     * Channels are tried from a random starting point so a busy channel
+     * cannot starve the others.
+     */
+    static LoxList select(List<LoxChannel> channels) {
+        Waiter waiter = new Waiter();
+        for (LoxChannel channel : channels) {
+            channel.register(waiter);
+        }
+        try {
+            while (true) {
+                int start = ThreadLocalRandom.current().nextInt(channels.size());
+                for (int i = 0; i < channels.size(); i++) {
+                    LoxChannel channel = channels.get((start + i) % channels.size());
+                    Object value = channel.poll();
+                    if (value != EMPTY) {
+                        LoxList result = new LoxList(2);
+                        result.append(channel);
+                        result.append(value);
+                        return result;
+                    }
+                }
+                waiter.await();
+            }
+        } finally {
+            for (LoxChannel channel : channels) {
+                channel.unregister(waiter);
+            }
+        }
+    }
+
+    private Object poll() {
+        lock.lock();
+        try {
+            if (count > 0) return take();
+            return closed ? null : EMPTY;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Object take() {
+        Object value = buffer[head];
+        buffer[head] = null;
+        head = (head + 1) % buffer.length;
+        count--;
+        notFull.signal();
+        return value;
+    }
+
+    private void register(Waiter waiter) {
+        lock.lock();
+        try {
+            waiters.add(waiter);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void unregister(Waiter waiter) {
+        lock.lock();
+        try {
+            waiters.remove(waiter);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void wakeWaiters() {
+        for (Waiter waiter : waiters) {
+            waiter.wake();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<channel>";
+    }
+
+    /**
+     * What a select parks on. A wake that arrives between the select
+     * checking its channels and parking is remembered, so it is not lost.
+     */
+    private static final class Waiter {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition woken = lock.newCondition();
+        private boolean pending = false;
+
+        void wake() {
+            lock.lock();
+            try {
+                pending = true;
+                woken.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void await() {
+            lock.lock();
+            try {
+                while (!pending) {
+                    woken.awaitUninterruptibly();
+                }
+                pending = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
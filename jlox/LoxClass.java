@@ -0,0 +1,77 @@
+package jlox;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Lox class. Inherited methods are copied into the class's own method table
+ * when it is created, so finding a method is one lookup however deep the
+ * hierarchy is.
+ */
+final class LoxClass implements LoxCallable {
+    final String name;
+    final LoxClass superclass;
+    final Shape shape = new Shape(this);
+    private final Map<String, LoxFunction> methods = new HashMap<>();
+    private LoxFunction initializer;
+
+    // The most fields any instance has had, so new instances are allocated
+    // with room for them up front.
+    private int expectedFields = 0;
+
+    LoxClass(String name, LoxClass superclass) {
+        this.name = name;
+        this.superclass = superclass;
+        if (superclass != null) {
+            methods.putAll(superclass.methods);
+            initializer = superclass.initializer;
+        }
+    }
+
+    /**
+     * Adds a method while the class is being created; classes are not
+     * modified after their declaration has run.
+     */
+    void define(LoxFunction method) {
+        String methodName = method.declaration.name.lexeme;
+        methods.put(methodName, method);
+        if (methodName.equals("init")) initializer = method;
+    }
+
+    Collection<LoxFunction> methods() {
+        return methods.values();
+    }
+
+    LoxFunction findMethod(String name) {
+        return methods.get(name);
+    }
+
+    LoxFunction initializer() {
+        return initializer;
+    }
+
+    int expectedFields() {
+        return expectedFields;
+    }
+
+    void expectFields(int count) {
+        if (count > expectedFields) expectedFields = count;
+    }
+
+    @Override
+    public int arity() {
+        return initializer == null ? 0 : initializer.arity();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return interpreter.instantiate(this, arguments);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,310 @@
+package jlox;
+
+import java.util.List;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import jlox.Expression.*;
+import jlox.Statement.*;
+
+/**
+ * JDK Flight Recorder events emitted by the interpreter. When no recording is
+ * running, begin/commit are no-ops the JIT removes along with the event
+ * allocation. Creating the first event still makes Flight Recorder build its
+ * event metadata, which takes a few hundred milliseconds, so no event is
+ * created until {@link #enabled} says Flight Recorder has started.
+ */
+class LoxEvents {
+    @Name("jlox.Phase")
+    @Label("Lox Phase")
+    @Category("Lox")
+    @Description("Time spent scanning, parsing or executing a script")
+    @StackTrace(false)
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Tokens")
+        int tokens;
+
+        @Label("Nodes")
+        int nodes;
+
+        PhaseEvent(String phase) {
+            this.phase = phase;
+        }
+    }
+
+    @Name("jlox.RuntimeError")
+    @Label("Lox Runtime Error")
+    @Category("Lox")
+    @StackTrace(false)
+    static class RuntimeErrorEvent extends Event {
+        @Label("Line")
+        int line;
+
+        @Label("Message")
+        String message;
+    }
+
+    @Name("jlox.Loop")
+    @Label("Lox Loop")
+    @Category("Lox")
+    @Description("A while or for loop that ran longer than the threshold")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static class LoopEvent extends Event {
+        @Label("Line")
+        int line;
+
+        @Label("Iterations")
+        long iterations;
+    }
+
+    @Name("jlox.TierUp")
+    @Label("Lox Tier Up")
+    @Category("Lox")
+    @Description("A hot loop compiled to the faster tier")
+    @StackTrace(false)
+    static class TierUpEvent extends Event {
+        @Label("Line")
+        int line;
+
+        @Label("Back Edges")
+        int backEdges;
+    }
+
+    /**
+     * Whether Flight Recorder is running, at startup with
+     * -XX:StartFlightRecording or since being started with jcmd.
+     */
+    static boolean enabled() {
+        return FlightRecorder.isInitialized();
+    }
+
+    static int countNodes(List<Statement> statements) {
+        NodeCounter counter = new NodeCounter();
+        for (Statement statement : statements) {
+            counter.count(statement);
+        }
+        return counter.nodes;
+    }
+
+    private static class NodeCounter implements Expression.Visitor<Void>, Statement.Visitor<Void> {
+        int nodes = 0;
+
+        void count(Object node) {
+            if (node == null) return;
+            nodes++;
+            if (node instanceof Expression) {
+                ((Expression) node).accept(this);
+            } else {
+                ((Statement) node).accept(this);
+            }
+        }
+
+        @Override
+        public Void visitAssignExpression(Assign expression) {
+            count(expression.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpression(Binary expression) {
+            count(expression.left);
+            count(expression.right);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpression(Grouping expression) {
+            count(expression.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpression(Literal expression) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpression(Unary expression) {
+            count(expression.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpression(Variable expression) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpression(Logical expression) {
+            count(expression.left);
+            count(expression.right);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStatement(Statement.Expression statement) {
+            count(statement.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStatement(Print statement) {
+            count(statement.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStatement(Var statement) {
+            count(statement.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStatement(Block statement) {
+            for (Statement inner : statement.statements) {
+                count(inner);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitIfStatement(If statement) {
+            count(statement.condition);
+            count(statement.thenBranch);
+            count(statement.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStatement(While statement) {
+            count(statement.condition);
+            count(statement.body);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpression(Call expression) {
+            count(expression.callee);
+            for (Expression argument : expression.arguments) {
+                count(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStatement(Function statement) {
+            for (Statement inner : statement.body) {
+                count(inner);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStatement(Return statement) {
+            count(statement.value);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStatement(Statement.Class statement) {
+            count(statement.superclass);
+            for (Statement method : statement.methods) {
+                count(method);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitParallelForStatement(ParallelFor statement) {
+            count(statement.from);
+            count(statement.to);
+            for (Expression target : statement.targets) {
+                count(target);
+            }
+            count(statement.body);
+            return null;
+        }
+
+        @Override
+        public Void visitSpawnStatement(Spawn statement) {
+            count(statement.call);
+            count(statement.body);
+            return null;
+        }
+
+        @Override
+        public Void visitLazyBlockStatement(LazyBlock statement) {
+            // A block that has not run yet has no nodes to count.
+            List<Statement> statements = statement.statements;
+            if (statements != null) {
+                for (Statement inner : statements) {
+                    count(inner);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitInstrumentedStatement(Instrumented statement) {
+            count(statement.statement);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpression(Get expression) {
+            count(expression.object);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpression(Expression.Set expression) {
+            count(expression.object);
+            count(expression.value);
+            return null;
+        }
+
+        @Override
+        public Void visitListLiteralExpression(ListLiteral expression) {
+            for (Expression element : expression.elements) {
+                count(element);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitIndexExpression(Index expression) {
+            count(expression.object);
+            count(expression.index);
+            return null;
+        }
+
+        @Override
+        public Void visitIndexAssignExpression(IndexAssign expression) {
+            count(expression.object);
+            count(expression.index);
+            count(expression.value);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpression(This expression) {
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpression(Super expression) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package jlox;
+
+import java.util.List;
+
+/**
+ * A user-defined function. Calls to it normally take the interpreter's frame
+ * stack fast path in {@code visitCallExpression}; {@link #call} is the
+ * generic entry point for callers that already hold the arguments in a list.
+ *
+ * A closure is flat: it keeps a copy of just the variables its body uses
+ * from enclosing functions, not the frames they live in.
+ */
+class LoxFunction implements LoxCallable {
+    /**
+     * Where a closure gets one captured value from when it is created,
+     * relative to the function that creates it.
+     */
+    static final class Capture {
+        static final int SLOT = 0;
+        static final int LINKED_SLOT = 1;
+        static final int CAPTURE = 2;
+        static final int SELF = 3;
+
+        final int kind;
+        final int index;
+
+        Capture(int kind, int index) {
+            this.kind = kind;
+            this.index = index;
+        }
+    }
+
+    final Statement.Function declaration;
+    final Object[] captures;
+    // The instance a method is bound to; null for plain functions and for
+    // the unbound methods a class holds.
+    final Object receiver;
+
+    LoxFunction(Statement.Function declaration, Object[] captures) {
+        this(declaration, captures, null);
+    }
+
+    private LoxFunction(Statement.Function declaration, Object[] captures, Object receiver) {
+        this.declaration = declaration;
+        this.captures = captures;
+        this.receiver = receiver;
+    }
+
+    LoxFunction bind(Object instance) {
+        return new LoxFunction(declaration, captures, instance);
+    }
+
+    @Override
+    public int arity() {
+        return declaration.params.size();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return interpreter.callFunction(this, arguments);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<fn %s>", declaration.name.lexeme);
+    }
+}
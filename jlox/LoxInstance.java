@@ -0,0 +1,37 @@
+package jlox;
+
+import java.util.Arrays;
+
+/**
+ * An instance of a Lox class: a shape and the field values in the slots the
+ * shape assigns them.
+ */
+final class LoxInstance {
+    Shape shape;
+    Object[] fields;
+    // The pfor worker that made this, which alone may change it while the
+    // pfor runs; null when made outside any pfor. See Interpreter#checkWritable.
+    Interpreter owner;
+
+    LoxInstance(LoxClass klass) {
+        this.shape = klass.shape;
+        this.fields = new Object[klass.expectedFields()];
+    }
+
+    /**
+     * Stores a field the shape may not have yet; transition is the shape the
+     * instance has once it does.
+     */
+    void put(int index, Shape transition, Object value) {
+        if (index >= fields.length) {
+            fields = Arrays.copyOf(fields, Math.max(index + 1, fields.length * 2));
+        }
+        fields[index] = value;
+        shape = transition;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s instance", shape.klass.name);
+    }
+}
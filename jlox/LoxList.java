@@ -0,0 +1,149 @@
+package jlox;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+
+/**
+ * A Lox list. While every element is a number the elements are stored
+ * unboxed in a {@code double[]}; the first non-number stored moves them to an
+ * {@code Object[]} for good. Reading an element of a numeric list hands back
+ * the same Lox number that was stored, since {@link Numbers#valueOf} turns
+ * integral doubles back into longs. That read boxes the number, so the
+ * interpreter reads elements that feed arithmetic or a comparison with
+ * {@link #number} instead, and append, slice and sort work on the
+ * {@code double[]} directly.
+ */
+final class LoxList {
+    private static final int MIN_CAPACITY = 8;
+
+    private double[] numbers;
+    private Object[] objects;
+    private int size;
+    // The pfor worker that made this, which alone may change it while the
+    // pfor runs; null when made outside any pfor. See Interpreter#checkWritable.
+    Interpreter owner;
+
+    LoxList(int capacity) {
+        numbers = new double[Math.max(capacity, MIN_CAPACITY)];
+    }
+
+    private LoxList(double[] numbers, Object[] objects, int size) {
+        this.numbers = numbers;
+        this.objects = objects;
+        this.size = size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Checks that a Lox value is a valid index into this list.
+     */
+    int index(Token site, Object index) {
+        return position(site, index, size - 1, "List index out of range.");
+    }
+
+    /**
+     * Checks that a Lox value is an integer between 0 and max.
+     */
+    static int position(Token site, Object value, int max, String outOfRange) {
+        if (!Numbers.isNumber(value)) throw new RuntimeError(site, "List index must be an integer.");
+        double number = Numbers.toDouble(value);
+        if (number != Math.floor(number)) throw new RuntimeError(site, "List index must be an integer.");
+        if (number < 0 || number > max) throw new RuntimeError(site, outOfRange);
+        return (int) number;
+    }
+
+    Object get(int index) {
+        return numbers != null ? Numbers.valueOf(numbers[index]) : objects[index];
+    }
+
+    /**
+     * Whether every element is a number, so {@link #number} can read them.
+     */
+    boolean isNumeric() {
+        return numbers != null;
+    }
+
+    double number(int index) {
+        return numbers[index];
+    }
+
+    void set(int index, Object value) {
+        if (numbers != null) {
+            if (Numbers.isNumber(value)) {
+                numbers[index] = Numbers.toDouble(value);
+                return;
+            }
+            generalize();
+        }
+        objects[index] = value;
+    }
+
+    void append(Object value) {
+        int capacity = numbers != null ? numbers.length : objects.length;
+        if (size == capacity) grow(size + 1);
+        size++;
+        set(size - 1, value);
+    }
+
+    LoxList slice(int from, int to) {
+        if (numbers != null) {
+            return new LoxList(Arrays.copyOfRange(numbers, from, Math.max(to, from + MIN_CAPACITY)), null, to - from);
+        }
+        return new LoxList(null, Arrays.copyOfRange(objects, from, Math.max(to, from + MIN_CAPACITY)), to - from);
+    }
+
+    /**
+     * Sorts a list of numbers or a list of strings in place.
+     */
+    void sort(Token site) {
+        if (numbers != null) {
+            Arrays.sort(numbers, 0, size);
+            return;
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (!Rope.isString(objects[i])) {
+                throw new RuntimeError(site, "Can only sort a list of numbers or a list of strings.");
+            }
+        }
+        Arrays.sort(objects, 0, size, Comparator.comparing(Object::toString));
+    }
+
+    private void grow(int minimum) {
+        // Amortized doubling so a run of appends costs O(1) each.
+        int capacity = Math.max(minimum, size * 2);
+        if (numbers != null) {
+            numbers = Arrays.copyOf(numbers, capacity);
+        } else {
+            objects = Arrays.copyOf(objects, capacity);
+        }
+    }
+
+    private void generalize() {
+        objects = new Object[numbers.length];
+        for (int i = 0; i < size; i++) {
+            objects[i] = Numbers.valueOf(numbers[i]);
+        }
+        numbers = null;
+    }
+
+    @Override
+    public String toString() {
+        return toString(Interpreter.enclosing());
+    }
+
+    String toString(Set<Object> enclosing) {
+        if (!enclosing.add(this)) return "[...]";
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(Interpreter.stringify(get(i), enclosing));
+        }
+        enclosing.remove(this);
+        return builder.append(']').toString();
+    }
+}
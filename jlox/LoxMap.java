@@ -0,0 +1,222 @@
+package jlox;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * A Lox map: an open-addressing hash table with linear probing, kept in
+ * insertion order. Entries are appended to parallel arrays and the probe
+ * table only holds entry positions, so iterating walks the entry arrays in
+ * the order keys were first added and a removal leaves a tombstone entry that
+ * the next rebuild drops.
+ *
+ * Keys compare the way {@code ==} does. Numeric keys are stored unboxed in a
+ * {@code double[]}; string keys are flattened to Strings and compared by
+ * identity before content, which is usually enough because the scanner
+ * interns string literals.
+ */
+final class LoxMap {
+    private static final Object NUMBER = new Object();
+    private static final Object REMOVED = new Object();
+    private static final int MIN_CAPACITY = 8;
+
+    // Probe table, twice the entry capacity: an entry's position plus one,
+    // or zero for a free slot.
+    private int[] table;
+
+    private Object[] keys;
+    private double[] numberKeys;
+    private int[] hashes;
+    private Object[] values;
+
+    // Entries used including removed ones, and live entries.
+    private int count = 0;
+    private int size = 0;
+    // The pfor worker that made this, which alone may change it while the
+    // pfor runs; null when made outside any pfor. See Interpreter#checkWritable.
+    Interpreter owner;
+
+    LoxMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    int size() {
+        return size;
+    }
+
+    Object get(Object key) {
+        int entry = find(key);
+        return entry >= 0 ? values[entry] : null;
+    }
+
+    boolean has(Object key) {
+        return find(key) >= 0;
+    }
+
+    void put(Object key, Object value) {
+        key = normalize(key);
+        int entry = find(key);
+        if (entry >= 0) {
+            values[entry] = value;
+            return;
+        }
+
+        if (count == keys.length) {
+            // Rebuild in place when removals freed enough entries, else grow.
+            allocateAndCopy(size * 2 > keys.length ? keys.length * 2 : keys.length);
+        }
+        entry = count++;
+        int hash = hash(key);
+        if (Numbers.isNumber(key)) {
+            keys[entry] = NUMBER;
+            numberKeys[entry] = Numbers.toDouble(key);
+        } else {
+            keys[entry] = key;
+        }
+        hashes[entry] = hash;
+        values[entry] = value;
+        insert(entry, hash);
+        size++;
+    }
+
+    boolean remove(Object key) {
+        int entry = find(key);
+        if (entry < 0) return false;
+        keys[entry] = REMOVED;
+        values[entry] = null;
+        size--;
+        return true;
+    }
+
+    /**
+     * Removes every entry but keeps the capacity, so a map reused across
+     * iterations of a loop does not grow again.
+     */
+    void clear() {
+        Arrays.fill(table, 0);
+        Arrays.fill(keys, 0, count, null);
+        Arrays.fill(values, 0, count, null);
+        count = 0;
+        size = 0;
+    }
+
+    LoxList keys() {
+        LoxList list = new LoxList(size);
+        for (int entry = 0; entry < count; entry++) {
+            if (keys[entry] != REMOVED) list.append(key(entry));
+        }
+        return list;
+    }
+
+    LoxList values() {
+        LoxList list = new LoxList(size);
+        for (int entry = 0; entry < count; entry++) {
+            if (keys[entry] != REMOVED) list.append(values[entry]);
+        }
+        return list;
+    }
+
+    private Object key(int entry) {
+        return keys[entry] == NUMBER ? Numbers.valueOf(numberKeys[entry]) : keys[entry];
+    }
+
+    private int find(Object key) {
+        key = normalize(key);
+        int hash = hash(key);
+        int mask = table.length - 1;
+
+        if (Numbers.isNumber(key)) {
+            // Compare the bits so that, as with ==, NaN finds NaN and 0 and -0 differ.
+            long bits = Double.doubleToLongBits(Numbers.toDouble(key));
+            for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                int entry = table[slot] - 1;
+                if (keys[entry] == NUMBER && Double.doubleToLongBits(numberKeys[entry]) == bits) return entry;
+            }
+            return -1;
+        }
+
+        for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            Object candidate = keys[entry];
+            if (candidate == key) return entry;
+            if (hashes[entry] == hash && candidate != NUMBER && candidate != REMOVED
+                    && candidate != null && candidate.equals(key)) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(int entry, int hash) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0) slot = (slot + 1) & mask;
+        table[slot] = entry + 1;
+    }
+
+    private void allocate(int capacity) {
+        table = new int[capacity * 2];
+        keys = new Object[capacity];
+        numberKeys = new double[capacity];
+        hashes = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    private void allocateAndCopy(int capacity) {
+        Object[] oldKeys = keys;
+        double[] oldNumberKeys = numberKeys;
+        int[] oldHashes = hashes;
+        Object[] oldValues = values;
+        int oldCount = count;
+
+        allocate(capacity);
+        count = 0;
+        for (int entry = 0; entry < oldCount; entry++) {
+            if (oldKeys[entry] == REMOVED) continue;
+            keys[count] = oldKeys[entry];
+            numberKeys[count] = oldNumberKeys[entry];
+            hashes[count] = oldHashes[entry];
+            values[count] = oldValues[entry];
+            insert(count, hashes[count]);
+            count++;
+        }
+    }
+
+    private static Object normalize(Object key) {
+        return key instanceof Rope ? key.toString() : key;
+    }
+
+    private static int hash(Object key) {
+        int hash;
+        if (Numbers.isNumber(key)) {
+            long bits = Double.doubleToLongBits(Numbers.toDouble(key));
+            hash = (int) (bits ^ (bits >>> 32));
+        } else {
+            hash = key == null ? 0 : key.hashCode();
+        }
+        // Spread the bits so that keys differing only in high bits, like
+        // consecutive doubles, do not all land in one probe run.
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return toString(Interpreter.enclosing());
+    }
+
+    String toString(Set<Object> enclosing) {
+        if (!enclosing.add(this)) return "{...}";
+        StringBuilder builder = new StringBuilder("{");
+        boolean first = true;
+        for (int entry = 0; entry < count; entry++) {
+            if (keys[entry] == REMOVED) continue;
+            if (!first) builder.append(", ");
+            first = false;
+            builder.append(Interpreter.stringify(key(entry), enclosing)).append(": ")
+                    .append(Interpreter.stringify(values[entry], enclosing));
+        }
+        enclosing.remove(this);
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,94 @@
+package jlox;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Backs the {@link LoxMetricsMBean}. Collection is switched on with
+ * {@code -Djlox.metrics=true}; every call site checks {@link #ENABLED}, which
+ * the JIT folds to a constant, so disabled metrics cost nothing.
+ */
+class LoxMetrics implements LoxMetricsMBean {
+    static final boolean ENABLED = Boolean.getBoolean("jlox.metrics");
+    static final LoxMetrics INSTANCE = new LoxMetrics();
+
+    private static final int CALL_DEPTH_BUCKETS = 16;
+
+    private final LongAdder scriptsRun = new LongAdder();
+    private final LongAdder compileErrors = new LongAdder();
+    private final LongAdder runtimeErrors = new LongAdder();
+    private final LongAdder scanNanos = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder executeNanos = new LongAdder();
+    private final AtomicLongArray callDepths = new AtomicLongArray(CALL_DEPTH_BUCKETS);
+
+    static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName("jlox:type=Metrics"));
+        } catch (JMException e) {
+            System.err.println(String.format("Could not register jlox metrics: %s", e.getMessage()));
+        }
+    }
+
+    void scriptRun(long scan, long parse, long execute) {
+        scriptsRun.increment();
+        scanNanos.add(scan);
+        parseNanos.add(parse);
+        executeNanos.add(execute);
+    }
+
+    void compileError() {
+        compileErrors.increment();
+    }
+
+    void runtimeError() {
+        runtimeErrors.increment();
+    }
+
+    void call(int depth) {
+        callDepths.incrementAndGet(Math.min(depth, CALL_DEPTH_BUCKETS - 1));
+    }
+
+    @Override
+    public long getScriptsRun() {
+        return scriptsRun.sum();
+    }
+
+    @Override
+    public long getCompileErrors() {
+        return compileErrors.sum();
+    }
+
+    @Override
+    public long getRuntimeErrors() {
+        return runtimeErrors.sum();
+    }
+
+    @Override
+    public long getScanNanos() {
+        return scanNanos.sum();
+    }
+
+    @Override
+    public long getParseNanos() {
+        return parseNanos.sum();
+    }
+
+    @Override
+    public long getExecuteNanos() {
+        return executeNanos.sum();
+    }
+
+    @Override
+    public long[] getCallDepthHistogram() {
+        long[] histogram = new long[CALL_DEPTH_BUCKETS];
+        for (int i = 0; i < CALL_DEPTH_BUCKETS; i++) {
+            histogram[i] = callDepths.get(i);
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,25 @@
+package jlox;
+
+/**
+ * Cumulative interpreter counters published over JMX as {@code jlox:type=Metrics}.
+ */
+public interface LoxMetricsMBean {
+    long getScriptsRun();
+
+    long getCompileErrors();
+
+    long getRuntimeErrors();
+
+    long getScanNanos();
+
+    long getParseNanos();
+
+    long getExecuteNanos();
+
+    /**
+     * How deep the Lox call stack already was when each function was called:
+     * index i counts calls made from depth i, the last bucket everything
+     * deeper.
+     */
+    long[] getCallDepthHistogram();
+}
@@ -0,0 +1,130 @@
+package jlox;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file a line or a fixed-size record at a time through a window of
+ * the file mapped into memory. Only the window is mapped, so a script can
+ * walk a file of any size; each line is returned as a {@link Rope} view of
+ * the mapped bytes and is only decoded if the script looks at its
+ * characters. Splitting lines just looks for newline bytes.
+ *
+ * A line holds on to the whole 64 MB window it was read from. Memory stays
+ * flat while a script lets each line go before reading on, but lines it
+ * keeps, say in a list, keep their windows mapped until they are dropped.
+ */
+final class LoxReader {
+    private static final int WINDOW = 64 * 1024 * 1024;
+
+    private final String path;
+    private final FileChannel channel;
+    private final long size;
+
+    private MappedByteBuffer window;
+    private long windowStart = 0;
+    private long position = 0;
+
+    LoxReader(String path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(Path.of(path), StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    /**
+     * Returns the next line without its line terminator, or null at the end
+     * of the file.
+     */
+    Object readLine() throws IOException {
+        if (position >= size) return null;
+
+        int length = WINDOW;
+        while (true) {
+            map(position, length);
+            int start = (int) (position - windowStart);
+            int limit = window.limit();
+            for (int i = start; i < limit; i++) {
+                if (window.get(i) == '\n') {
+                    int end = i > start && window.get(i - 1) == '\r' ? i - 1 : i;
+                    position = windowStart + i + 1;
+                    return view(start, end);
+                }
+            }
+
+            if (windowStart + limit == size) {
+                position = size;
+                return view(start, limit);
+            }
+            // The line runs past the window: map one starting at the line.
+            if (start == 0 && limit == length) {
+                if (length == Integer.MAX_VALUE) throw new IOException("Line too long.");
+                length = (int) Math.min((long) length * 2, Integer.MAX_VALUE);
+            }
+            window = null;
+        }
+    }
+
+    /**
+     * Returns the next record of the given number of bytes, shorter at the
+     * end of the file, or null once the file is exhausted.
+     */
+    Object readRecord(int bytes) throws IOException {
+        if (position >= size) return null;
+
+        int length = (int) Math.min(bytes, size - position);
+        map(position, Math.max(length, WINDOW));
+        if (position + length > windowStart + window.limit()) {
+            window = null;
+            map(position, Math.max(length, WINDOW));
+        }
+        int start = (int) (position - windowStart);
+        position += length;
+        return view(start, start + length);
+    }
+
+    void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    /**
+     * Makes sure the window covers the given position, mapping a new window
+     * that starts there if it does not.
+     */
+    private void map(long at, int length) throws IOException {
+        if (window != null && at >= windowStart && at < windowStart + window.limit()) return;
+        windowStart = at;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, at, Math.min(length, size - at));
+    }
+
+    /**
+     * The line or record between two offsets of the window, without copying
+     * it; see the class comment for what that keeps alive.
+     */
+    private Object view(int start, int end) {
+        // Count the characters the bytes decode to without decoding them:
+        // every byte except UTF-8 continuation bytes starts a character, and
+        // four-byte sequences need a surrogate pair.
+        int characters = 0;
+        boolean ascii = true;
+        for (int i = start; i < end; i++) {
+            byte b = window.get(i);
+            if (b >= 0) {
+                characters++;
+                continue;
+            }
+            ascii = false;
+            if ((b & 0xC0) != 0x80) characters++;
+            if ((b & 0xF8) == 0xF0) characters++;
+        }
+        return Rope.bytes(window, start, end - start, characters, ascii);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<reader %s>", path);
+    }
+}
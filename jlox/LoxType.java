@@ -0,0 +1,26 @@
+package jlox;
+
+/**
+ * What TypeInference knows about a value: one of the Lox types it tracks, or
+ * UNKNOWN when the value could be anything, including functions, classes,
+ * instances and collections, which it does not tell apart.
+ */
+enum LoxType {
+    NIL,
+    BOOLEAN,
+    NUMBER,
+    STRING,
+    UNKNOWN;
+
+    LoxType join(LoxType other) {
+        return this == other ? this : UNKNOWN;
+    }
+
+    static LoxType of(Object value) {
+        if (value == null) return NIL;
+        if (value instanceof Boolean) return BOOLEAN;
+        if (Numbers.isNumber(value)) return NUMBER;
+        if (Rope.isString(value)) return STRING;
+        return UNKNOWN;
+    }
+}
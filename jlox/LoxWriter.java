@@ -0,0 +1,72 @@
+package jlox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes to a file through a large direct buffer. Strings that are still
+ * views of bytes read by a {@link LoxReader} are copied across as bytes
+ * without being decoded and encoded again. Output is only complete once the
+ * writer is closed; the interpreter closes any the script leaves open when
+ * it finishes.
+ */
+final class LoxWriter {
+    private static final int BUFFER = 1024 * 1024;
+    private static final byte[] NEWLINE = {'\n'};
+
+    private final String path;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+
+    LoxWriter(String path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(Path.of(path), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    void write(Object value) throws IOException {
+        ByteBuffer bytes = Rope.rawBytes(value);
+        if (bytes == null) {
+            bytes = ByteBuffer.wrap(Interpreter.stringify(value).getBytes(StandardCharsets.UTF_8));
+        }
+        put(bytes);
+    }
+
+    void writeLine(Object value) throws IOException {
+        write(value);
+        put(ByteBuffer.wrap(NEWLINE));
+    }
+
+    void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    private void put(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            if (!buffer.hasRemaining()) flush();
+            int count = Math.min(bytes.remaining(), buffer.remaining());
+            ByteBuffer chunk = bytes.duplicate();
+            chunk.limit(chunk.position() + count);
+            buffer.put(chunk);
+            bytes.position(bytes.position() + count);
+        }
+    }
+
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<writer %s>", path);
+    }
+}
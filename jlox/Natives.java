@@ -0,0 +1,210 @@
+package jlox;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Functions implemented in Java that every interpreter defines as globals.
+ * A native reports a bad argument with a {@link RuntimeError} that has no
+ * token; the interpreter attaches the token of the call. I/O failures are
+ * reported the same way.
+ */
+class Natives {
+    private interface Body {
+        Object call(Interpreter interpreter, List<Object> arguments) throws IOException;
+    }
+
+    private static final class NativeFunction implements LoxCallable {
+        private final int arity;
+        private final Body body;
+
+        NativeFunction(int arity, Body body) {
+            this.arity = arity;
+            this.body = body;
+        }
+
+        @Override
+        public int arity() {
+            return arity;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            try {
+                return body.call(interpreter, arguments);
+            } catch (IOException e) {
+                throw new RuntimeError(null, String.format("I/O error: %s", e.getMessage()));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    }
+
+    private Natives() {
+    }
+
+    static void define(Globals globals) {
+        define(globals, "clock", 0, (interpreter, arguments) -> (double) System.currentTimeMillis() / 1000.0);
+
+        define(globals, "len", 1, (interpreter, arguments) -> {
+            Object value = arguments.get(0);
+            if (value instanceof LoxList) return (long) ((LoxList) value).size();
+            if (value instanceof LoxMap) return (long) ((LoxMap) value).size();
+            if (Rope.isString(value)) return (long) ((CharSequence) value).length();
+            throw new RuntimeError(null, "Argument to len must be a list, a map or a string.");
+        });
+
+        define(globals, "append", 2, (interpreter, arguments) -> {
+            LoxList list = list("append", arguments.get(0));
+            interpreter.checkWritable(null, list.owner, "a list");
+            list.append(arguments.get(1));
+            return null;
+        });
+
+        define(globals, "slice", 3, (interpreter, arguments) -> {
+            LoxList list = list("slice", arguments.get(0));
+            int from = LoxList.position(null, arguments.get(1), list.size(), "Slice bounds out of range.");
+            int to = LoxList.position(null, arguments.get(2), list.size(), "Slice bounds out of range.");
+            if (from > to) throw new RuntimeError(null, "Slice bounds out of range.");
+            LoxList slice = list.slice(from, to);
+            slice.owner = interpreter.owner();
+            return slice;
+        });
+
+        define(globals, "sort", 1, (interpreter, arguments) -> {
+            LoxList list = list("sort", arguments.get(0));
+            interpreter.checkWritable(null, list.owner, "a list");
+            list.sort(null);
+            return null;
+        });
+
+        define(globals, "map", 0, (interpreter, arguments) -> {
+            LoxMap map = new LoxMap();
+            map.owner = interpreter.owner();
+            return map;
+        });
+        define(globals, "keys", 1, (interpreter, arguments) -> {
+            LoxList keys = map("keys", arguments.get(0)).keys();
+            keys.owner = interpreter.owner();
+            return keys;
+        });
+        define(globals, "values", 1, (interpreter, arguments) -> {
+            LoxList values = map("values", arguments.get(0)).values();
+            values.owner = interpreter.owner();
+            return values;
+        });
+        define(globals, "has", 2, (interpreter, arguments) -> map("has", arguments.get(0)).has(arguments.get(1)));
+        define(globals, "remove", 2, (interpreter, arguments) -> {
+            LoxMap map = map("remove", arguments.get(0));
+            interpreter.checkWritable(null, map.owner, "a map");
+            return map.remove(arguments.get(1));
+        });
+        define(globals, "clear", 1, (interpreter, arguments) -> {
+            LoxMap map = map("clear", arguments.get(0));
+            interpreter.checkWritable(null, map.owner, "a map");
+            map.clear();
+            return null;
+        });
+
+        define(globals, "reader", 1, (interpreter, arguments) -> interpreter.openReader(path("reader", arguments.get(0))));
+        define(globals, "readLine", 1, (interpreter, arguments) -> reader("readLine", arguments.get(0)).readLine());
+        define(globals, "readRecord", 2, (interpreter, arguments) -> {
+            LoxReader reader = reader("readRecord", arguments.get(0));
+            Object size = arguments.get(1);
+            if (!Numbers.isNumber(size) || Numbers.toDouble(size) < 1 || Numbers.toDouble(size) > Integer.MAX_VALUE
+                    || Numbers.toDouble(size) != Math.floor(Numbers.toDouble(size))) {
+                throw new RuntimeError(null, "Record size must be a positive integer.");
+            }
+            return reader.readRecord((int) Numbers.toDouble(size));
+        });
+        define(globals, "writer", 1, (interpreter, arguments) -> interpreter.openWriter(path("writer", arguments.get(0))));
+        define(globals, "write", 2, (interpreter, arguments) -> {
+            writer("write", arguments.get(0)).write(arguments.get(1));
+            return null;
+        });
+        define(globals, "writeLine", 2, (interpreter, arguments) -> {
+            writer("writeLine", arguments.get(0)).writeLine(arguments.get(1));
+            return null;
+        });
+        define(globals, "close", 1, (interpreter, arguments) -> {
+            Object file = arguments.get(0);
+            if (file instanceof LoxReader) {
+                interpreter.closeReader((LoxReader) file);
+            } else if (file instanceof LoxWriter) {
+                interpreter.closeWriter((LoxWriter) file);
+            } else if (file instanceof LoxChannel) {
+                ((LoxChannel) file).close();
+            } else {
+                throw new RuntimeError(null, "Argument to close must be a reader, a writer or a channel.");
+            }
+            return null;
+        });
+
+        define(globals, "channel", 1, (interpreter, arguments) -> {
+            Object capacity = arguments.get(0);
+            if (!Numbers.isNumber(capacity) || Numbers.toDouble(capacity) < 1
+                    || Numbers.toDouble(capacity) > Integer.MAX_VALUE
+                    || Numbers.toDouble(capacity) != Math.floor(Numbers.toDouble(capacity))) {
+                throw new RuntimeError(null, "Channel capacity must be a positive integer.");
+            }
+            return new LoxChannel((int) Numbers.toDouble(capacity));
+        });
+        define(globals, "send", 2, (interpreter, arguments) -> {
+            channel("send", arguments.get(0)).send(arguments.get(1));
+            return null;
+        });
+        define(globals, "receive", 1, (interpreter, arguments) -> channel("receive", arguments.get(0)).receive());
+        define(globals, "select", 1, (interpreter, arguments) -> {
+            LoxList list = list("select", arguments.get(0));
+            if (list.size() == 0) throw new RuntimeError(null, "Argument to select must not be empty.");
+            List<LoxChannel> channels = new ArrayList<>();
+            for (int i = 0; i < list.size(); i++) {
+                if (!(list.get(i) instanceof LoxChannel)) {
+                    throw new RuntimeError(null, "Argument to select must be a list of channels.");
+                }
+                channels.add((LoxChannel) list.get(i));
+            }
+            LoxList result = LoxChannel.select(channels);
+            result.owner = interpreter.owner();
+            return result;
+        });
+    }
+
+    private static void define(Globals globals, String name, int arity, Body body) {
+        globals.cell(name).define(new NativeFunction(arity, body));
+    }
+
+    private static String path(String name, Object value) {
+        if (Rope.isString(value)) return value.toString();
+        throw new RuntimeError(null, String.format("Argument to %s must be a path.", name));
+    }
+
+    private static LoxReader reader(String name, Object value) {
+        if (value instanceof LoxReader) return (LoxReader) value;
+        throw new RuntimeError(null, String.format("First argument to %s must be a reader.", name));
+    }
+
+    private static LoxWriter writer(String name, Object value) {
+        if (value instanceof LoxWriter) return (LoxWriter) value;
+        throw new RuntimeError(null, String.format("First argument to %s must be a writer.", name));
+    }
+
+    private static LoxChannel channel(String name, Object value) {
+        if (value instanceof LoxChannel) return (LoxChannel) value;
+        throw new RuntimeError(null, String.format("First argument to %s must be a channel.", name));
+    }
+
+    private static LoxMap map(String name, Object value) {
+        if (value instanceof LoxMap) return (LoxMap) value;
+        throw new RuntimeError(null, String.format("First argument to %s must be a map.", name));
+    }
+
+    private static LoxList list(String name, Object value) {
+        if (value instanceof LoxList) return (LoxList) value;
+        throw new RuntimeError(null, String.format("First argument to %s must be a list.", name));
+    }
+}
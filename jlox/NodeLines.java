@@ -0,0 +1,187 @@
+package jlox;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import jlox.Expression.*;
+import jlox.Statement.*;
+
+/**
+ * Works out which source line a node belongs to from the tokens it holds.
+ * Nodes that carry no token of their own (literals, groupings, blocks) take
+ * the line of the first token found beneath them, or {@link #UNKNOWN}.
+ * Results are cached, so this is only meant for tooling that asks about the
+ * same nodes repeatedly, never for the interpreter's hot path.
+ */
+class NodeLines implements Expression.Visitor<Integer>, Statement.Visitor<Integer> {
+    static final int UNKNOWN = -1;
+
+    private final Map<Object, Integer> lines = new IdentityHashMap<>();
+
+    int of(Object node) {
+        if (node == null) return UNKNOWN;
+        Integer line = lines.get(node);
+        if (line == null) {
+            line = node instanceof Expression
+                    ? ((Expression) node).accept(this)
+                    : ((Statement) node).accept(this);
+            lines.put(node, line);
+        }
+        return line;
+    }
+
+    private int first(Object... nodes) {
+        for (Object node : nodes) {
+            int line = of(node);
+            if (line != UNKNOWN) return line;
+        }
+        return UNKNOWN;
+    }
+
+    @Override
+    public Integer visitAssignExpression(Assign expression) {
+        return expression.name.line;
+    }
+
+    @Override
+    public Integer visitBinaryExpression(Binary expression) {
+        int line = of(expression.left);
+        return line != UNKNOWN ? line : expression.operator.line;
+    }
+
+    @Override
+    public Integer visitGroupingExpression(Grouping expression) {
+        return of(expression.expression);
+    }
+
+    @Override
+    public Integer visitLiteralExpression(Literal expression) {
+        return UNKNOWN;
+    }
+
+    @Override
+    public Integer visitUnaryExpression(Unary expression) {
+        return expression.operator.line;
+    }
+
+    @Override
+    public Integer visitVariableExpression(Variable expression) {
+        return expression.name.line;
+    }
+
+    @Override
+    public Integer visitLogicalExpression(Logical expression) {
+        int line = of(expression.left);
+        return line != UNKNOWN ? line : expression.operator.line;
+    }
+
+    @Override
+    public Integer visitExpressionStatement(Statement.Expression statement) {
+        return of(statement.expression);
+    }
+
+    @Override
+    public Integer visitPrintStatement(Print statement) {
+        return of(statement.expression);
+    }
+
+    @Override
+    public Integer visitVarStatement(Var statement) {
+        return statement.name.line;
+    }
+
+    @Override
+    public Integer visitBlockStatement(Block statement) {
+        return first(statement.statements.toArray());
+    }
+
+    @Override
+    public Integer visitIfStatement(If statement) {
+        return first(statement.condition, statement.thenBranch, statement.elseBranch);
+    }
+
+    @Override
+    public Integer visitWhileStatement(While statement) {
+        return first(statement.condition, statement.body);
+    }
+
+    @Override
+    public Integer visitCallExpression(Call expression) {
+        int line = of(expression.callee);
+        return line != UNKNOWN ? line : expression.paren.line;
+    }
+
+    @Override
+    public Integer visitFunctionStatement(Function statement) {
+        return statement.name.line;
+    }
+
+    @Override
+    public Integer visitReturnStatement(Return statement) {
+        return statement.keyword.line;
+    }
+
+    @Override
+    public Integer visitClassStatement(Statement.Class statement) {
+        return statement.name.line;
+    }
+
+    @Override
+    public Integer visitParallelForStatement(ParallelFor statement) {
+        return statement.keyword.line;
+    }
+
+    @Override
+    public Integer visitSpawnStatement(Spawn statement) {
+        return statement.keyword.line;
+    }
+
+    @Override
+    public Integer visitLazyBlockStatement(LazyBlock statement) {
+        return statement.brace.line;
+    }
+
+    @Override
+    public Integer visitInstrumentedStatement(Instrumented statement) {
+        return statement.line;
+    }
+
+    @Override
+    public Integer visitGetExpression(Get expression) {
+        int line = of(expression.object);
+        return line != UNKNOWN ? line : expression.name.line;
+    }
+
+    @Override
+    public Integer visitSetExpression(Expression.Set expression) {
+        int line = of(expression.object);
+        return line != UNKNOWN ? line : expression.name.line;
+    }
+
+    @Override
+    public Integer visitListLiteralExpression(ListLiteral expression) {
+        return expression.bracket.line;
+    }
+
+    @Override
+    public Integer visitIndexExpression(Index expression) {
+        int line = of(expression.object);
+        return line != UNKNOWN ? line : expression.bracket.line;
+    }
+
+    @Override
+    public Integer visitIndexAssignExpression(IndexAssign expression) {
+        int line = of(expression.object);
+        return line != UNKNOWN ? line : expression.bracket.line;
+    }
+
+    @Override
+    public Integer visitThisExpression(This expression) {
+        return expression.keyword.line;
+    }
+
+    @Override
+    public Integer visitSuperExpression(Super expression) {
+        return expression.keyword.line;
+    }
+}
@@ -0,0 +1,122 @@
+package jlox;
+
+/**
+ * Arithmetic on Lox numbers. A Lox number is either a {@code Double} or, for
+ * integers whose magnitude is at most 2^53, a {@code Long}. Every integer in
+ * that range is exactly representable as a double, so doing the arithmetic on
+ * longs gives bit-for-bit the result the double arithmetic would have; when a
+ * result could differ (it leaves the range, or is a negative zero) the
+ * operation falls back to doubles.
+ */
+class Numbers {
+    static final long MAX_EXACT = 1L << 53;
+
+    private static final double SCIENTIFIC_ABOVE = 1e7;
+
+    private Numbers() {
+    }
+
+    static boolean isNumber(Object object) {
+        return object instanceof Long || object instanceof Double;
+    }
+
+    static boolean isExact(long value) {
+        return value >= -MAX_EXACT && value <= MAX_EXACT;
+    }
+
+    /**
+     * The Lox number for a double: a {@code Long} if it is an integer a Long
+     * holds exactly, as the arithmetic here would have produced it.
+     */
+    static Object valueOf(double value) {
+        long integer = (long) value;
+        boolean negativeZero = integer == 0 && Double.doubleToRawLongBits(value) != 0;
+        if (integer == value && isExact(integer) && !negativeZero) return integer;
+        return value;
+    }
+
+    static double toDouble(Object number) {
+        return number instanceof Long ? (double) (long) number : (double) number;
+    }
+
+    static Object add(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            long result = (long) left + (long) right;
+            if (isExact(result)) return result;
+        }
+        return toDouble(left) + toDouble(right);
+    }
+
+    static Object subtract(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            long result = (long) left - (long) right;
+            if (isExact(result)) return result;
+        }
+        return toDouble(left) - toDouble(right);
+    }
+
+    static Object multiply(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            long a = (long) left;
+            long b = (long) right;
+            long high = Math.multiplyHigh(a, b);
+            long result = a * b;
+            boolean fits = (high == 0 && result >= 0) || (high == -1 && result < 0);
+            // 0 * -n is -0.0 in double arithmetic, which a long cannot hold.
+            if (fits && isExact(result) && (result != 0 || (a >= 0 && b >= 0))) return result;
+        }
+        return toDouble(left) * toDouble(right);
+    }
+
+    /**
+     * Divides two numbers; the caller has already rejected a zero divisor.
+     */
+    static Object divide(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            long a = (long) left;
+            long b = (long) right;
+            if (a % b == 0 && (a != 0 || b > 0)) return a / b;
+        }
+        return toDouble(left) / toDouble(right);
+    }
+
+    static Object negate(Object number) {
+        if (number instanceof Long && (long) number != 0) return -(long) number;
+        return -toDouble(number);
+    }
+
+    static boolean isZero(Object number) {
+        return number instanceof Long ? (long) number == 0 : (double) number == 0;
+    }
+
+    static boolean less(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) return (long) left < (long) right;
+        return toDouble(left) < toDouble(right);
+    }
+
+    static boolean lessEqual(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) return (long) left <= (long) right;
+        return toDouble(left) <= toDouble(right);
+    }
+
+    /**
+     * Equality with the semantics {@code Double.equals} gave Lox numbers:
+     * NaN equals itself and 0 does not equal -0.
+     */
+    static boolean equal(Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) return left.equals(right);
+        return Double.valueOf(toDouble(left)).equals(toDouble(right));
+    }
+
+    static String stringify(Object number) {
+        if (number instanceof Long && Math.abs((long) number) < SCIENTIFIC_ABOVE) {
+            return number.toString();
+        }
+
+        String text = Double.toString(toDouble(number));
+        if (text.endsWith(".0")) {
+            text = text.substring(0, text.length() - 2);
+        }
+        return text;
+    }
+}
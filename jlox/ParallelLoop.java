@@ -0,0 +1,92 @@
+package jlox;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Runs the iterations of a pfor on a fork/join pool. The range is split in
+ * halves until the pieces are small enough to give every core several; each
+ * piece runs on a fresh {@link Interpreter} that shares the globals but has a
+ * stack of its own, and returns its private reduction values, which are then
+ * combined pairwise on the way back up.
+ */
+final class ParallelLoop extends RecursiveTask<Object[]> {
+    private static final long serialVersionUID = 1L;
+    private static final int PIECES_PER_CORE = 4;
+
+    private static final class Pool {
+        static final ForkJoinPool INSTANCE = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    private final Interpreter parent;
+    private final Statement.ParallelFor statement;
+    private final LoxFunction body;
+    private final Object from;
+    private final long start;
+    private final long end;
+    private final long grain;
+
+    private ParallelLoop(Interpreter parent, Statement.ParallelFor statement, LoxFunction body,
+                         Object from, long start, long end, long grain) {
+        this.parent = parent;
+        this.statement = statement;
+        this.body = body;
+        this.from = from;
+        this.start = start;
+        this.end = end;
+        this.grain = grain;
+    }
+
+    /**
+     * Runs iterations 0 to count, the loop variable starting at from, and
+     * returns the combined value of each reduction over all of them.
+     */
+    static Object[] run(Interpreter parent, Statement.ParallelFor statement, LoxFunction body,
+                        Object from, long count) {
+        long pieces = (long) Pool.INSTANCE.getParallelism() * PIECES_PER_CORE;
+        long grain = Math.max(1, count / pieces);
+        return Pool.INSTANCE.invoke(new ParallelLoop(parent, statement, body, from, 0, count, grain));
+    }
+
+    @Override
+    protected Object[] compute() {
+        if (end - start <= grain) {
+            return new Interpreter(parent, true).iterate(statement, body, from, start, end);
+        }
+
+        long middle = start + (end - start) / 2;
+        ParallelLoop left = new ParallelLoop(parent, statement, body, from, start, middle, grain);
+        ParallelLoop right = new ParallelLoop(parent, statement, body, from, middle, end, grain);
+        left.fork();
+        Object[] values = right.compute();
+        Object[] leftValues = left.join();
+        List<Token> operators = statement.operators;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = combine(operators.get(i), leftValues[i], values[i]);
+        }
+        return values;
+    }
+
+    /**
+     * The value each worker's copy of a reduction variable starts at.
+     */
+    static Object identity(Token operator) {
+        switch (operator.lexeme) {
+            case "sum": return 0L;
+            case "min": return Double.POSITIVE_INFINITY;
+            default: return Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    static Object combine(Token operator, Object left, Object right) {
+        if (!Numbers.isNumber(left) || !Numbers.isNumber(right)) {
+            throw new RuntimeError(operator, "Reduction variables must be numbers.");
+        }
+        switch (operator.lexeme) {
+            case "sum": return Numbers.add(left, right);
+            case "min": return Numbers.less(right, left) ? right : left;
+            default: return Numbers.less(left, right) ? right : left;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package jlox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An interpreter that keeps a shadow stack of the nodes it is executing and
+ * records it whenever a background timer asks for a sample. Lox only pays for
+ * this when it is started with {@code --profile}; the plain
+ * {@link Interpreter} has no hooks at all.
+ */
+class ProfilingInterpreter extends Interpreter {
+    private static final long INTERVAL_NANOS = 1_000_000;
+
+    private final String collapsedPath;
+
+    private Object[] nodes = new Object[64];
+    private int depth = 0;
+
+    // Set by the timer thread, consumed by the interpreter thread at the next
+    // node it enters, so the node stack is always read by the thread that owns it.
+    private volatile boolean sampleRequested = false;
+
+    private final NodeLines nodeLines = new NodeLines();
+    private final Map<String, Long> collapsed = new HashMap<>();
+    private final Map<Integer, long[]> lineSamples = new TreeMap<>();
+    private long samples = 0;
+
+    ProfilingInterpreter(String collapsedPath) {
+        this.collapsedPath = collapsedPath;
+    }
+
+    // Every node has to pass through evaluate and execute to be seen.
+    @Override
+    boolean compilesLoops() {
+        return false;
+    }
+
+    @Override
+    Object evaluate(Expression expression) {
+        push(expression);
+        try {
+            return super.evaluate(expression);
+        } finally {
+            depth--;
+        }
+    }
+
+    @Override
+    void execute(Statement statement) {
+        push(statement);
+        try {
+            super.execute(statement);
+        } finally {
+            depth--;
+        }
+    }
+
+    private void push(Object node) {
+        if (depth == nodes.length) {
+            nodes = Arrays.copyOf(nodes, depth * 2);
+        }
+        nodes[depth++] = node;
+        if (sampleRequested) {
+            sampleRequested = false;
+            sample();
+        }
+    }
+
+    @Override
+    void interpret(List<Statement> statements, int slots, boolean repl) {
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(INTERVAL_NANOS);
+                sampleRequested = true;
+            }
+        }, "lox-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+
+        try {
+            super.interpret(statements, slots, repl);
+        } finally {
+            sampler.interrupt();
+            try {
+                sampler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            report();
+        }
+    }
+
+    private void sample() {
+        int top = depth;
+
+        // Collapse the node stack into the Lox lines it spans, dropping nodes
+        // that share a line with their parent or have no line of their own.
+        List<Integer> lines = new ArrayList<>();
+        for (int i = 0; i < top; i++) {
+            int line = nodeLines.of(nodes[i]);
+            if (line == NodeLines.UNKNOWN) continue;
+            if (lines.isEmpty() || lines.get(lines.size() - 1) != line) {
+                lines.add(line);
+            }
+        }
+        if (lines.isEmpty()) return;
+
+        samples++;
+        StringBuilder frames = new StringBuilder();
+        for (int i = 0; i < lines.size(); i++) {
+            int line = lines.get(i);
+            if (i > 0) frames.append(';');
+            frames.append("line ").append(line);
+
+            long[] counts = lineSamples.computeIfAbsent(line, key -> new long[2]);
+            if (lines.indexOf(line) == i) counts[1]++;
+            if (i == lines.size() - 1) counts[0]++;
+        }
+        collapsed.merge(frames.toString(), 1L, Long::sum);
+    }
+
+    private void report() {
+        PrintStream err = System.err;
+        double millisPerSample = INTERVAL_NANOS / 1_000_000.0;
+        err.println(String.format("Profile: %d samples every %.3f ms", samples, millisPerSample));
+        if (samples == 0) return;
+
+        List<Map.Entry<Integer, long[]>> hottest = new ArrayList<>(lineSamples.entrySet());
+        hottest.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+
+        err.println(String.format("%6s %10s %7s %10s %7s", "line", "self ms", "self%", "total ms", "total%"));
+        for (Map.Entry<Integer, long[]> entry : hottest) {
+            long self = entry.getValue()[0];
+            long total = entry.getValue()[1];
+            err.println(String.format("%6d %10.1f %6.1f%% %10.1f %6.1f%%", entry.getKey(),
+                    self * millisPerSample, self * 100.0 / samples,
+                    total * millisPerSample, total * 100.0 / samples));
+        }
+
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(collapsedPath)))) {
+            for (Map.Entry<String, Long> stack : collapsed.entrySet()) {
+                writer.println(stack.getKey() + " " + stack.getValue());
+            }
+            err.println(String.format("Collapsed stacks written to %s", collapsedPath));
+        } catch (IOException e) {
+            err.println(String.format("Could not write collapsed stacks to %s: %s", collapsedPath, e.getMessage()));
+        }
+    }
+}
@@ -8,24 +8,76 @@ import java.util.List;
 import jlox.Expression.*;
 
 public class RecursiveParser {
+    private static final int MAX_ARGUMENTS = 255;
+    // Smaller blocks are cheaper to parse than to defer.
+    private static final int MIN_LAZY_TOKENS = 32;
+
     private final List<Token> tokens;
+    private final boolean lazy;
+    private final boolean strict;
     private int current = 0;
+    private boolean failed = false;
+    // Every function and method declaration parsed, in the order they were
+    // finished, so Snapshot can refer to them by position.
+    private final List<Statement.Function> functions = new ArrayList<>();
 
     private static class RecursiveParseError extends RuntimeException {
     }
 
     RecursiveParser(List<Token> tokens) {
+        this(tokens, false, false);
+    }
+
+    /**
+     * A lazy parser leaves the bodies of if and while statements as token
+     * ranges that are parsed the first time they run, so a syntax error in
+     * one only shows up then. A strict lazy parser still parses them all up
+     * front to report their errors, and keeps what it parsed for their first
+     * run; it only saves resolving bodies that never run.
+     */
+    RecursiveParser(List<Token> tokens, boolean lazy, boolean strict) {
         this.tokens = tokens;
+        this.lazy = lazy;
+        this.strict = strict;
     }
 
     List<Statement> parse() {
+        LoxEvents.PhaseEvent event = LoxEvents.enabled() ? new LoxEvents.PhaseEvent("parse") : null;
+        if (event != null) event.begin();
+
         List<Statement> statements = new ArrayList<>();
         while (!isAtEnd()) {
             statements.add(declaration());
         }
+
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.tokens = tokens.size();
+                event.nodes = LoxEvents.countNodes(statements);
+                event.commit();
+            }
+        }
         return statements;
     }
 
+    /**
+     * Parses the one declaration starting at the given token, leaving
+     * {@link #position()} just past it.
+     */
+    Statement parseDeclaration(int start) {
+        current = start;
+        return declaration();
+    }
+
+    int position() {
+        return current;
+    }
+
+    List<Statement.Function> functions() {
+        return functions;
+    }
+
     Expression parseExpression() {
         Expression expression = expression();
         return expression;
@@ -33,8 +85,12 @@ public class RecursiveParser {
 
     private Statement declaration() {
         try {
+            if (match(CLASS))
+                return classDeclaration();
             if (match(VAR))
                 return varDeclaration();
+            if (match(FUN))
+                return function("function");
 
             return statement();
         } catch (RecursiveParseError recursiveParseError) {
@@ -43,6 +99,25 @@ public class RecursiveParser {
         }
     }
 
+    private Statement classDeclaration() {
+        Token name = consume(IDENTIFIER, "Expect class name.");
+
+        Variable superclass = null;
+        if (match(LESS)) {
+            consume(IDENTIFIER, "Expect superclass name.");
+            superclass = new Variable(previous());
+        }
+
+        consume(LEFT_BRACE, "Expect '{' before class body.");
+        List<Statement.Function> methods = new ArrayList<>();
+        while (!check(RIGHT_BRACE) && !isAtEnd()) {
+            methods.add(function("method"));
+        }
+        consume(RIGHT_BRACE, "Expect '}' after class body.");
+
+        return new Statement.Class(name, superclass, methods);
+    }
+
     private Statement varDeclaration() {
         Token name = consume(IDENTIFIER, "Expecting variable name when declaring variable.");
 
@@ -55,15 +130,42 @@ public class RecursiveParser {
         return new Statement.Var(name, initializer);
     }
 
+    private Statement.Function function(String kind) {
+        Token name = consume(IDENTIFIER, String.format("Expect %s name.", kind));
+        consume(LEFT_PAREN, String.format("Expect '(' after %s name.", kind));
+        List<Token> parameters = new ArrayList<>();
+        if (!check(RIGHT_PAREN)) {
+            do {
+                if (parameters.size() >= MAX_ARGUMENTS) {
+                    Lox.error(peek().line, String.format("Can't have more than %d parameters.", MAX_ARGUMENTS));
+                }
+                parameters.add(consume(IDENTIFIER, "Expect parameter name."));
+            } while (match(COMMA));
+        }
+        consume(RIGHT_PAREN, "Expect ')' after parameters.");
+
+        consume(LEFT_BRACE, String.format("Expect '{' before %s body.", kind));
+        List<Statement> body = block();
+        Statement.Function function = new Statement.Function(name, parameters, body);
+        functions.add(function);
+        return function;
+    }
+
     private Statement statement() {
         if (match(PRINT))
             return printStatement();
+        if (match(RETURN))
+            return returnStatement();
         if (match(IF))
             return ifStatement();
         if (match(WHILE))
             return whileStatement();
         if (match(FOR))
             return forStatement();
+        if (match(PFOR))
+            return parallelForStatement();
+        if (match(SPAWN))
+            return spawnStatement();
         if (match(LEFT_BRACE))
             return new Statement.Block(block());
         return expressionStatement();
@@ -80,6 +182,60 @@ public class RecursiveParser {
         return statements;
     }
 
+    /**
+     * The body of an if or while, after its opening brace. When parsing
+     * lazily, a body big enough to be worth it is skipped by matching
+     * braces. Bodies that declare functions or classes, or use this, super,
+     * pfor or spawn, are always parsed now: the Resolver has to see those
+     * before the script runs.
+     */
+    private Statement body() {
+        if (!lazy) return new Statement.Block(block());
+
+        Token brace = previous();
+        int depth = 1;
+        int end = current;
+        boolean deferrable = true;
+        for (; depth > 0; end++) {
+            switch (tokens.get(end).type) {
+                case LEFT_BRACE: depth++; break;
+                case RIGHT_BRACE: depth--; break;
+                case EOF: throw error(tokens.get(end), "Expect '}' after block.");
+                case FUN: case CLASS: case THIS: case SUPER: case PFOR: case SPAWN: deferrable = false; break;
+                default: break;
+            }
+        }
+        // end is now just past the closing brace.
+        if (!deferrable || end - 1 - current < MIN_LAZY_TOKENS) return new Statement.Block(block());
+
+        List<Token> body = tokens.subList(current, end - 1);
+        Statement.LazyBlock block = new Statement.LazyBlock(brace, body);
+        if (strict) {
+            block.parsed = parseBody(brace, body);
+            if (block.parsed == null) failed = true;
+        }
+        current = end;
+        return block;
+    }
+
+    /**
+     * Parses the tokens of a deferred block body, or returns null after
+     * reporting a syntax error in them.
+     */
+    static List<Statement> parseBody(Token brace, List<Token> body) {
+        Token last = body.isEmpty() ? brace : body.get(body.size() - 1);
+        List<Token> tokens = new ArrayList<>(body.size() + 1);
+        tokens.addAll(body);
+        tokens.add(new Token(EOF, "", null, last.line, last.tokenPosition));
+
+        RecursiveParser parser = new RecursiveParser(tokens);
+        List<Statement> statements = new ArrayList<>();
+        while (!parser.isAtEnd()) {
+            statements.add(parser.declaration());
+        }
+        return parser.failed ? null : statements;
+    }
+
     private Statement expressionStatement() {
         Expression expression = expression();
         consume(SEMICOLON, "Expect ';' after expression.");
@@ -92,34 +248,47 @@ public class RecursiveParser {
         return new Statement.Print(value);
     }
 
+    private Statement returnStatement() {
+        Token keyword = previous();
+        Expression value = null;
+        if (!check(SEMICOLON)) {
+            value = expression();
+        }
+
+        consume(SEMICOLON, "Expect ';' after return value.");
+        return new Statement.Return(keyword, value);
+    }
+
     private Statement ifStatement() {
         consume(LEFT_PAREN, "Expect '(' after if");
         Expression condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after if conditional statement.");
 
         consume(LEFT_BRACE, "Expect '{' for beginning of if block");
-        Statement thenBranch = new Statement.Block(block());
+        Statement thenBranch = body();
         Statement elseBranch = null;
         if (match(ELSE)) {
             consume(LEFT_BRACE, "Expect '{' for beginning of if block");
-            elseBranch = new Statement.Block(block());
+            elseBranch = body();
         }
 
         return new Statement.If(condition, thenBranch, elseBranch);
     }
 
     private Statement whileStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "'(' expected for while conditional");
         Expression condition = expression();
         consume(RIGHT_PAREN, "')' expected after while condition");
 
         consume(LEFT_BRACE, "Expect '{' for beginning of while block");
-        Statement body = new Statement.Block(block());
+        Statement body = body();
 
-        return new Statement.While(condition, body);
+        return new Statement.While(keyword, condition, body);
     }
 
     private Statement forStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "'(' expected after for declaration");
         Statement varDec;
         if (match(SEMICOLON)){
@@ -142,15 +311,87 @@ public class RecursiveParser {
 
         if (update != null) forBody.add(update);
         Statement body = new Statement.Block(forBody);
-        Statement whileBody = new Statement.While(condition, body);
+        Statement whileBody = new Statement.While(keyword, condition, body);
 
         if (varDec == null) {
             return whileBody;
         }
-        Statement forStatement = new Statement.Block(List.of(varDec, whileBody));
+        List<Statement> statements = new ArrayList<>();
+        statements.add(varDec);
+        statements.add(whileBody);
+        Statement forStatement = new Statement.Block(statements);
         return forStatement;
     }
 
+    /**
+     * pfor (var i = from; i < to) reduce (sum total, max best) { body }
+     *
+     * The body becomes a function whose parameters are the loop variable and
+     * a private copy of each reduction variable, so every worker running
+     * iterations has its own.
+     */
+    private Statement parallelForStatement() {
+        Token keyword = previous();
+        consume(LEFT_PAREN, "'(' expected after pfor");
+        consume(VAR, "Expect 'var' to declare the pfor variable.");
+        Token variable = consume(IDENTIFIER, "Expect pfor variable name.");
+        consume(EQUAL, "Expect '=' after pfor variable.");
+        Expression from = expression();
+        consume(SEMICOLON, "; expected after pfor start");
+        Token bound = consume(IDENTIFIER, "Expect pfor variable in condition.");
+        if (!bound.lexeme.equals(variable.lexeme)) {
+            throw error(bound, "pfor condition must test the pfor variable.");
+        }
+        consume(LESS, "Expect '<' in pfor condition.");
+        Expression to = expression();
+        consume(RIGHT_PAREN, "')' expected after pfor condition");
+
+        List<Token> operators = new ArrayList<>();
+        List<Variable> targets = new ArrayList<>();
+        List<Token> parameters = new ArrayList<>();
+        parameters.add(variable);
+        if (check(IDENTIFIER) && peek().lexeme.equals("reduce")) {
+            advance();
+            consume(LEFT_PAREN, "Expect '(' after reduce.");
+            do {
+                Token operator = consume(IDENTIFIER, "Expect sum, min or max.");
+                if (!List.of("sum", "min", "max").contains(operator.lexeme)) {
+                    throw error(operator, "Expect sum, min or max.");
+                }
+                Token name = consume(IDENTIFIER, "Expect reduction variable name.");
+                operators.add(operator);
+                targets.add(new Variable(name));
+                parameters.add(name);
+            } while (match(COMMA));
+            consume(RIGHT_PAREN, "Expect ')' after reductions.");
+        }
+
+        consume(LEFT_BRACE, "Expect '{' for beginning of pfor block");
+        Statement.Function body = new Statement.Function(keyword, parameters, block());
+        return new Statement.ParallelFor(keyword, from, to, operators, targets, body);
+    }
+
+    /**
+     * spawn { body } or spawn function(arguments);
+     *
+     * A block is run as a function of no parameters, so it copies the
+     * variables it uses from around it like any other closure.
+     */
+    private Statement spawnStatement() {
+        Token keyword = previous();
+        if (match(LEFT_BRACE)) {
+            Statement.Function body = new Statement.Function(keyword, new ArrayList<>(), block());
+            return new Statement.Spawn(keyword, null, body);
+        }
+
+        Expression expression = expression();
+        if (!(expression instanceof Call)) {
+            throw error(keyword, "Expect a call or a block after spawn.");
+        }
+        consume(SEMICOLON, "Expect ';' after spawned call.");
+        return new Statement.Spawn(keyword, (Call) expression, null);
+    }
+
     private Expression expression() {
         return assignment();
     }
@@ -189,6 +430,12 @@ public class RecursiveParser {
             if (expression instanceof Variable) {
                 Token name = ((Variable) expression).name;
                 return new Assign(name, value);
+            } else if (expression instanceof Get) {
+                Get get = (Get) expression;
+                return new Set(get.object, get.name, value);
+            } else if (expression instanceof Index) {
+                Index index = (Index) expression;
+                return new IndexAssign(index.object, index.bracket, index.index, value);
             }
 
             error(equals, "Invalid assignment target");
@@ -252,7 +499,44 @@ public class RecursiveParser {
             return new Unary(operator, right);
         }
 
-        return primary();
+        return call();
+    }
+
+    private Expression call() {
+        Expression expression = primary();
+
+        while (true) {
+            if (match(LEFT_PAREN)) {
+                expression = finishCall(expression);
+            } else if (match(DOT)) {
+                Token name = consume(IDENTIFIER, "Expect property name after '.'.");
+                expression = new Get(expression, name);
+            } else if (match(LEFT_BRACKET)) {
+                Token bracket = previous();
+                Expression index = expression();
+                consume(RIGHT_BRACKET, "Expect ']' after index.");
+                expression = new Index(expression, bracket, index);
+            } else {
+                break;
+            }
+        }
+
+        return expression;
+    }
+
+    private Expression finishCall(Expression callee) {
+        List<Expression> arguments = new ArrayList<>();
+        if (!check(RIGHT_PAREN)) {
+            do {
+                if (arguments.size() >= MAX_ARGUMENTS) {
+                    Lox.error(peek().line, String.format("Can't have more than %d arguments.", MAX_ARGUMENTS));
+                }
+                arguments.add(expression());
+            } while (match(COMMA));
+        }
+
+        Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
+        return new Call(callee, paren, arguments);
     }
 
     private Expression primary() {
@@ -265,6 +549,14 @@ public class RecursiveParser {
         if (match(NUMBER, STRING)) {
             return new Literal(previous().literal);
         }
+        if (match(THIS))
+            return new This(previous());
+        if (match(SUPER)) {
+            Token keyword = previous();
+            consume(DOT, "Expect '.' after 'super'.");
+            Token method = consume(IDENTIFIER, "Expect superclass method name.");
+            return new Super(keyword, method);
+        }
         if (match(IDENTIFIER))
             return new Variable(previous());
 
@@ -274,6 +566,18 @@ public class RecursiveParser {
             return new Grouping(expression);
         }
 
+        if (match(LEFT_BRACKET)) {
+            Token bracket = previous();
+            List<Expression> elements = new ArrayList<>();
+            if (!check(RIGHT_BRACKET)) {
+                do {
+                    elements.add(expression());
+                } while (match(COMMA));
+            }
+            consume(RIGHT_BRACKET, "Expect ']' after list elements.");
+            return new ListLiteral(bracket, elements);
+        }
+
         throw error(peek(), "Expect expression.");
     }
 
@@ -285,6 +589,7 @@ public class RecursiveParser {
     }
 
     private RecursiveParseError error(Token currentToken, String message) {
+        failed = true;
         Lox.error(currentToken.line, message);
         synchronize();
         return new RecursiveParseError();
@@ -302,6 +607,8 @@ public class RecursiveParser {
                 case FUN:
                 case VAR:
                 case FOR:
+                case PFOR:
+                case SPAWN:
                 case IF:
                 case WHILE:
                 case PRINT:
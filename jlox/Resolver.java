@@ -0,0 +1,724 @@
+package jlox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jlox.Expression.*;
+import jlox.Statement.*;
+
+/**
+ * A pass between parsing and interpreting that gives every local variable a
+ * slot in its function's frame, so the interpreter can keep locals on a flat
+ * stack instead of in a map per scope. A name refers to a local exactly when
+ * an enclosing block declares it before the access, which is known
+ * statically. Everything else is a global; what globals exist is not known
+ * statically, since later REPL lines keep adding them, so those are still
+ * looked up by name at run time (see {@link Globals}).
+ *
+ * Top-level code is treated as a function of its own: blocks outside any
+ * function get slots in the top-level frame.
+ *
+ * Closures are flat. A function that uses variables of enclosing functions
+ * gets a list of captures, copied into the closure when it is created; only
+ * a variable that is both captured and assigned is boxed so the copies share
+ * it. A local function whose name is only ever called directly, from the
+ * function that declares it or from itself, never escapes: no closure is
+ * created for it and its body reads the declaring function's frame through a
+ * static link. Both decisions need every use of a variable, so the walk only
+ * records them and {@link #layOut} settles them once the script is resolved.
+ */
+class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Void> {
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        final Function declaration;
+        final Local binding;
+        int nextSlot = 0;
+        int frameSize = 0;
+        boolean escapes = true;
+        // The body of a pfor, whose iterations may run at the same time.
+        boolean parallel;
+
+        // Variables of enclosing functions used here or in nested functions.
+        final Set<Local> free = new LinkedHashSet<>();
+        final Map<Local, Integer> captureIndexes = new HashMap<>();
+
+        FunctionScope(FunctionScope enclosing, Function declaration, Local binding) {
+            this.enclosing = enclosing;
+            this.declaration = declaration;
+            this.binding = binding;
+        }
+
+        int allocate() {
+            int slot = nextSlot++;
+            frameSize = Math.max(frameSize, nextSlot);
+            return slot;
+        }
+    }
+
+    private static class Local {
+        final FunctionScope function;
+        final int slot;
+        // A Var, Function or Class statement, or null for a parameter or for
+        // the implicit this and super, which are never assigned.
+        final Statement declaration;
+        FunctionScope declares;
+        boolean assigned = false;
+        // Assigned from another function in a lazy block, which leaves no
+        // Assign reference to tell by.
+        boolean assignedElsewhere = false;
+        boolean capturedByClosure = false;
+        final List<Reference> references = new ArrayList<>();
+
+        Local(FunctionScope function, int slot, Statement declaration) {
+            this.function = function;
+            this.slot = slot;
+            this.declaration = declaration;
+        }
+
+        boolean boxed() {
+            return assigned && capturedByClosure;
+        }
+    }
+
+    private static class Reference {
+        final Expression node;
+        final FunctionScope from;
+        // The call this reference is the callee of, if any.
+        final Call call;
+
+        Reference(Expression node, FunctionScope from, Call call) {
+            this.node = node;
+            this.from = from;
+            this.call = call;
+        }
+    }
+
+    private static class Scope {
+        final Map<String, Local> locals = new HashMap<>();
+    }
+
+    private enum ClassType {
+        NONE,
+        CLASS,
+        SUBCLASS
+    }
+
+    /**
+     * What is in scope where a lazy block sits, kept so its body can be
+     * resolved once it has been parsed, long after the rest of the script.
+     */
+    static final class Deferred {
+        private final List<Map<String, Local>> scopes;
+        private final FunctionScope function;
+        private final int firstSlot;
+        private final ClassType currentClass;
+
+        private Deferred(List<Map<String, Local>> scopes, FunctionScope function, int firstSlot,
+                         ClassType currentClass) {
+            this.scopes = scopes;
+            this.function = function;
+            this.firstSlot = firstSlot;
+            this.currentClass = currentClass;
+        }
+    }
+
+    private final Deque<Scope> scopes = new ArrayDeque<>();
+    private FunctionScope function = new FunctionScope(null, null, null);
+    private ClassType currentClass = ClassType.NONE;
+    private final List<FunctionScope> functions = new ArrayList<>();
+    private final List<Local> locals = new ArrayList<>();
+    // Resolving a lazy block's body: everything around it is laid out
+    // already, so nodes are annotated as soon as they are resolved.
+    private boolean deferred = false;
+    private boolean failed = false;
+
+    /**
+     * Resolves a script and returns how many slots its top-level frame needs.
+     */
+    int resolve(List<Statement> statements) {
+        for (Statement statement : statements) {
+            resolve(statement);
+        }
+        layOut();
+        new TypeInference().infer(statements, function.frameSize);
+        return function.frameSize;
+    }
+
+    /**
+     * Resolves the freshly parsed body of a lazy block, returning false if
+     * it had errors. Runs when the block is first entered.
+     */
+    static synchronized boolean resolveDeferred(LazyBlock block, List<Statement> statements) {
+        Deferred deferred = block.deferred;
+        Resolver resolver = new Resolver();
+        resolver.deferred = true;
+        for (int i = deferred.scopes.size() - 1; i >= 0; i--) {
+            Scope scope = new Scope();
+            scope.locals.putAll(deferred.scopes.get(i));
+            resolver.scopes.push(scope);
+        }
+        resolver.function = deferred.function;
+        resolver.currentClass = deferred.currentClass;
+        deferred.function.nextSlot = deferred.firstSlot;
+        resolver.visitBlockStatement(new Block(statements));
+        return !resolver.failed;
+    }
+
+    private void error(Token token, String message) {
+        failed = true;
+        Lox.error(token, message);
+    }
+
+    private void resolve(Statement statement) {
+        if (statement != null) statement.accept(this);
+    }
+
+    private void resolve(Expression expression) {
+        if (expression != null) expression.accept(this);
+    }
+
+    /**
+     * Declares a name in the innermost block, or returns null if the
+     * declaration is at top level and therefore a global.
+     */
+    private Local declare(Token name, Statement declaration) {
+        Scope scope = scopes.peek();
+        if (scope == null) return null;
+
+        // A redeclaration gets a slot of its own: a function declared before
+        // it may still read the earlier variable through a static link.
+        Local local = new Local(function, function.allocate(), declaration);
+        scope.locals.put(name.lexeme, local);
+        locals.add(local);
+        return local;
+    }
+
+    private Local resolveLocal(Expression node, Token name, Call call) {
+        for (Scope scope : scopes) {
+            Local local = scope.locals.get(name.lexeme);
+            if (local == null) continue;
+
+            if (deferred) {
+                annotate(new Reference(node, function, call), local, local.boxed(), false);
+                return local;
+            }
+            local.references.add(new Reference(node, function, call));
+            for (FunctionScope inner = function; inner != local.function; inner = inner.enclosing) {
+                inner.free.add(local);
+            }
+            return local;
+        }
+        return null;
+    }
+
+    /**
+     * Decides which functions escape, what each closure captures and which
+     * variables are boxed, then writes the results into the tree.
+     */
+    private void layOut() {
+        for (FunctionScope scope : functions) {
+            Local binding = scope.binding;
+            if (binding == null || binding.assigned) continue;
+            scope.escapes = false;
+            for (Reference reference : binding.references) {
+                boolean direct = reference.call != null
+                        && (reference.from == binding.function || reference.from == scope);
+                if (!direct) scope.escapes = true;
+            }
+        }
+
+        // Enclosing functions come first, so their captures are settled
+        // before a nested function copies from them.
+        for (FunctionScope scope : functions) {
+            if (!scope.escapes) {
+                // A static link reaches only the declaring function's frame;
+                // anything further out must be in a capture the callee shares.
+                for (Local local : scope.free) {
+                    if (local == scope.binding || local.function == scope.enclosing) continue;
+                    if (access(scope.enclosing, local).kind != LoxFunction.Capture.CAPTURE) {
+                        scope.escapes = true;
+                        break;
+                    }
+                }
+            }
+            scope.declaration.escapes = scope.escapes;
+            if (!scope.escapes) continue;
+
+            List<LoxFunction.Capture> captures = new ArrayList<>();
+            for (Local local : scope.free) {
+                scope.captureIndexes.put(local, captures.size());
+                if (local == scope.binding && !local.assigned) {
+                    captures.add(new LoxFunction.Capture(LoxFunction.Capture.SELF, 0));
+                    continue;
+                }
+                local.capturedByClosure = true;
+                if (local.function == scope.enclosing) {
+                    captures.add(new LoxFunction.Capture(LoxFunction.Capture.SLOT, local.slot));
+                } else {
+                    captures.add(access(scope.enclosing, local));
+                }
+            }
+            scope.declaration.captures = captures.toArray(new LoxFunction.Capture[0]);
+        }
+
+        for (Local local : locals) {
+            boolean boxed = local.boxed();
+            if (boxed) {
+                if (local.declaration instanceof Var) {
+                    ((Var) local.declaration).boxed = true;
+                } else if (local.declaration instanceof Function) {
+                    ((Function) local.declaration).boxed = true;
+                } else if (local.declaration instanceof Statement.Class) {
+                    ((Statement.Class) local.declaration).boxed = true;
+                } else {
+                    Function owner = local.function.declaration;
+                    owner.boxedParams = Arrays.copyOf(owner.boxedParams, owner.boxedParams.length + 1);
+                    owner.boxedParams[owner.boxedParams.length - 1] = local.slot;
+                }
+            }
+
+            // A variable written from another function, through a static
+            // link, can change type at any call.
+            boolean tracked = !boxed && !local.assignedElsewhere;
+            for (Reference reference : local.references) {
+                if (reference.node instanceof Assign && reference.from != local.function) tracked = false;
+            }
+
+            for (Reference reference : local.references) {
+                if (reference.call != null && local.declares != null && !local.declares.escapes) {
+                    reference.call.direct = local.declares.declaration;
+                    reference.call.fromDeclarer = reference.from == local.function;
+                }
+
+                annotate(reference, local, boxed, tracked);
+            }
+        }
+    }
+
+    /**
+     * Writes into a variable, assignment or this node how to reach its local.
+     */
+    private void annotate(Reference reference, Local local, boolean boxed, boolean tracked) {
+        // Names a deferred block might use have no node yet.
+        if (reference.node == null) return;
+
+        int slot = -1;
+        int capture = -1;
+        boolean linked = false;
+        if (reference.from == local.function) {
+            slot = local.slot;
+        } else {
+            LoxFunction.Capture access = access(reference.from, local);
+            if (access.kind == LoxFunction.Capture.CAPTURE) {
+                capture = access.index;
+            } else {
+                slot = access.index;
+                linked = true;
+            }
+        }
+
+        if (reference.node instanceof Variable) {
+            Variable variable = (Variable) reference.node;
+            variable.slot = slot;
+            variable.capture = capture;
+            variable.linked = linked;
+            variable.boxed = boxed;
+            variable.tracked = tracked && reference.from == local.function;
+        } else if (reference.node instanceof This) {
+            This receiver = (This) reference.node;
+            receiver.slot = slot;
+            receiver.capture = capture;
+            receiver.linked = linked;
+        } else {
+            Assign assign = (Assign) reference.node;
+            assign.slot = slot;
+            assign.capture = capture;
+            assign.linked = linked;
+            assign.boxed = boxed;
+            assign.tracked = tracked && reference.from == local.function;
+        }
+    }
+
+    /**
+     * How code running in the given function reaches a variable declared in
+     * an enclosing function.
+     */
+    private LoxFunction.Capture access(FunctionScope scope, Local local) {
+        if (scope.escapes) {
+            return new LoxFunction.Capture(LoxFunction.Capture.CAPTURE, scope.captureIndexes.get(local));
+        }
+        if (local.function == scope.enclosing) {
+            return new LoxFunction.Capture(LoxFunction.Capture.LINKED_SLOT, local.slot);
+        }
+        return access(scope.enclosing, local);
+    }
+
+    @Override
+    public Void visitAssignExpression(Assign expression) {
+        resolve(expression.value);
+        Local local = resolveLocal(expression, expression.name, null);
+        if (local != null) {
+            local.assigned = true;
+            checkParallelWrite(expression.name, local);
+        }
+        return null;
+    }
+
+    /**
+     * Rejects an assignment that would write, from inside a pfor body, to a
+     * variable declared outside it: iterations would race on it. Such
+     * variables have to be named in the pfor's reduce clause instead.
+     */
+    private void checkParallelWrite(Token name, Local local) {
+        for (FunctionScope inner = function; inner != local.function; inner = inner.enclosing) {
+            if (inner.parallel) {
+                error(name, "Can't assign to a variable declared outside pfor; use a reduce clause.");
+                return;
+            }
+        }
+    }
+
+    @Override
+    public Void visitBinaryExpression(Binary expression) {
+        resolve(expression.left);
+        resolve(expression.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpression(Grouping expression) {
+        resolve(expression.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpression(Literal expression) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpression(Unary expression) {
+        resolve(expression.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpression(Variable expression) {
+        resolveLocal(expression, expression.name, null);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpression(Logical expression) {
+        resolve(expression.left);
+        resolve(expression.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpression(Call expression) {
+        if (expression.callee instanceof Variable) {
+            Variable callee = (Variable) expression.callee;
+            resolveLocal(callee, callee.name, expression);
+        } else {
+            resolve(expression.callee);
+        }
+        for (Expression argument : expression.arguments) {
+            resolve(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStatement(Statement.Expression statement) {
+        resolve(statement.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStatement(Print statement) {
+        resolve(statement.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStatement(Var statement) {
+        // The initializer still sees whatever the name meant before this declaration.
+        resolve(statement.initializer);
+        Local local = declare(statement.name, statement);
+        if (local != null) statement.slot = local.slot;
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStatement(Block statement) {
+        int firstFree = function.nextSlot;
+        scopes.push(new Scope());
+        for (Statement inner : statement.statements) {
+            resolve(inner);
+        }
+        scopes.pop();
+        // Slots of a finished block are reused by the blocks that follow it.
+        function.nextSlot = firstFree;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStatement(If statement) {
+        resolve(statement.condition);
+        resolve(statement.thenBranch);
+        resolve(statement.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStatement(While statement) {
+        resolve(statement.condition);
+        resolve(statement.body);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStatement(Function statement) {
+        Local binding = declare(statement.name, statement);
+        if (binding != null) statement.slot = binding.slot;
+        resolveFunction(statement, binding, false);
+        return null;
+    }
+
+    private void resolveFunction(Function statement, Local binding, boolean parallel) {
+        FunctionScope enclosingFunction = function;
+        function = new FunctionScope(enclosingFunction, statement, binding);
+        function.parallel = parallel;
+        if (binding != null) binding.declares = function;
+        functions.add(function);
+        Scope scope = new Scope();
+        scopes.push(scope);
+
+        // A method's receiver is slot 0; parameters take the next slots of
+        // the frame, in order.
+        if (statement.method) {
+            Local receiver = new Local(function, function.allocate(), null);
+            scope.locals.put("this", receiver);
+            locals.add(receiver);
+        }
+        for (Token param : statement.params) {
+            Local local = new Local(function, function.allocate(), null);
+            scope.locals.put(param.lexeme, local);
+            locals.add(local);
+        }
+        for (Statement inner : statement.body) {
+            resolve(inner);
+        }
+
+        scopes.pop();
+        statement.frameSize = function.frameSize;
+        function = enclosingFunction;
+    }
+
+    @Override
+    public Void visitReturnStatement(Return statement) {
+        if (function.enclosing == null) {
+            error(statement.keyword, "Can't return from top-level code.");
+        } else if (function.parallel) {
+            error(statement.keyword, "Can't return from a pfor body.");
+        } else if (statement.value != null && function.declaration.initializer) {
+            error(statement.keyword, "Can't return a value from an initializer.");
+        }
+        resolve(statement.value);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStatement(Statement.Class statement) {
+        ClassType enclosingClass = currentClass;
+        currentClass = ClassType.CLASS;
+
+        Local binding = declare(statement.name, statement);
+        if (binding != null) statement.slot = binding.slot;
+
+        if (statement.superclass != null) {
+            if (statement.name.lexeme.equals(statement.superclass.name.lexeme)) {
+                error(statement.superclass.name, "A class can't inherit from itself.");
+            }
+            currentClass = ClassType.SUBCLASS;
+            resolve(statement.superclass);
+        }
+
+        // The superclass sits in a slot of the enclosing frame while the
+        // methods are created, so methods using super capture it like any
+        // other variable.
+        int firstFree = function.nextSlot;
+        if (statement.superclass != null) {
+            Scope scope = new Scope();
+            Local superclass = new Local(function, function.allocate(), null);
+            scope.locals.put("super", superclass);
+            locals.add(superclass);
+            statement.superSlot = superclass.slot;
+            scopes.push(scope);
+        }
+
+        for (Function method : statement.methods) {
+            method.method = true;
+            method.initializer = method.name.lexeme.equals("init");
+            resolveFunction(method, null, false);
+        }
+
+        if (statement.superclass != null) scopes.pop();
+        function.nextSlot = firstFree;
+        currentClass = enclosingClass;
+        return null;
+    }
+
+    @Override
+    public Void visitParallelForStatement(ParallelFor statement) {
+        resolve(statement.from);
+        resolve(statement.to);
+
+        // The combined results are written back to the reduction variables
+        // once every iteration is done, from the code around the loop.
+        Set<String> names = new HashSet<>();
+        for (Variable target : statement.targets) {
+            if (!names.add(target.name.lexeme)) {
+                error(target.name, "Reduction variable appears more than once.");
+            }
+            Local local = resolveLocal(target, target.name, null);
+            if (local != null) {
+                local.assigned = true;
+                checkParallelWrite(target.name, local);
+            }
+        }
+
+        // Like any closure, the body copies the outer variables it reads.
+        resolveFunction(statement.body, null, true);
+        return null;
+    }
+
+    @Override
+    public Void visitSpawnStatement(Spawn statement) {
+        if (statement.body != null) {
+            resolveFunction(statement.body, null, false);
+            return null;
+        }
+
+        // The callee is read as a value to hand to the task rather than
+        // called here, so a function spawned this way escapes.
+        resolve(statement.call.callee);
+        for (Expression argument : statement.call.arguments) {
+            resolve(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLazyBlockStatement(LazyBlock statement) {
+        List<Map<String, Local>> visible = new ArrayList<>();
+        for (Scope scope : scopes) {
+            visible.add(new HashMap<>(scope.locals));
+        }
+        statement.deferred = new Deferred(visible, function, function.nextSlot, currentClass);
+
+        // Without a tree, treat every name in the block as a use of whatever
+        // it means here, and as an assignment if '=' follows it, so captures
+        // and boxes are laid out for anything the body turns out to need.
+        // Its own variables get slots once it is parsed; reserve room.
+        List<Token> tokens = statement.tokens;
+        int variables = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            if (token.type == TokenType.VAR) variables++;
+            if (token.type != TokenType.IDENTIFIER || (i > 0 && tokens.get(i - 1).type == TokenType.DOT)) continue;
+            Local local = resolveLocal(null, token, null);
+            if (local != null && i + 1 < tokens.size() && tokens.get(i + 1).type == TokenType.EQUAL) {
+                local.assigned = true;
+                if (local.function != function) local.assignedElsewhere = true;
+            }
+        }
+        function.frameSize = Math.max(function.frameSize, function.nextSlot + variables);
+        return null;
+    }
+
+    @Override
+    public Void visitInstrumentedStatement(Instrumented statement) {
+        resolve(statement.statement);
+        // After the statement, so a probe on a declaration sees what it
+        // declares.
+        for (Variable variable : statement.variables) {
+            resolve(variable);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpression(Get expression) {
+        resolve(expression.object);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpression(Expression.Set expression) {
+        resolve(expression.value);
+        resolve(expression.object);
+        return null;
+    }
+
+    @Override
+    public Void visitListLiteralExpression(ListLiteral expression) {
+        for (Expression element : expression.elements) {
+            resolve(element);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpression(Index expression) {
+        resolve(expression.object);
+        resolve(expression.index);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexAssignExpression(IndexAssign expression) {
+        resolve(expression.object);
+        resolve(expression.index);
+        resolve(expression.value);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpression(This expression) {
+        if (currentClass == ClassType.NONE) {
+            error(expression.keyword, "Can't use 'this' outside of a class.");
+            return null;
+        }
+        resolveLocal(expression, expression.keyword, null);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpression(Super expression) {
+        if (currentClass == ClassType.NONE) {
+            error(expression.keyword, "Can't use 'super' outside of a class.");
+            return null;
+        } else if (currentClass != ClassType.SUBCLASS) {
+            error(expression.keyword, "Can't use 'super' in a class with no superclass.");
+            return null;
+        }
+
+        expression.superclass = new Variable(expression.keyword);
+        resolveLocal(expression.superclass, expression.keyword, null);
+        Token receiver = new Token(TokenType.THIS, "this", null, expression.keyword.line,
+                expression.keyword.tokenPosition);
+        expression.receiver = new This(receiver);
+        resolveLocal(expression.receiver, receiver, null);
+        return null;
+    }
+}
@@ -0,0 +1,247 @@
+package jlox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A Lox string built by {@code +} or {@code *} that is only turned into a
+ * flat {@link String} when its characters are actually needed (printing,
+ * comparing). Lox strings are therefore either a {@code String} or a
+ * {@code Rope}; use {@link #isString} to test for either.
+ *
+ * Short results are still built eagerly since a rope node costs more than
+ * copying a few characters. Concatenation trees are rebalanced once they get
+ * deeper than {@link #MAX_DEPTH}, so building a string in a loop stays linear
+ * and flattening never recurses deeply.
+ *
+ * A rope can also be a view of UTF-8 bytes read from a file, which are only
+ * decoded if the string's characters are needed.
+ */
+abstract class Rope implements CharSequence {
+    private static final int FLATTEN_BELOW = 64;
+    private static final int MAX_DEPTH = 48;
+    private static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final int length;
+    private final int depth;
+    private String flat;
+
+    private Rope(long length, int depth) {
+        this.length = (int) length;
+        this.depth = depth;
+    }
+
+    static boolean isString(Object object) {
+        return object instanceof String || object instanceof Rope;
+    }
+
+    /**
+     * Concatenates two Lox strings, returning either a String or a Rope.
+     */
+    static Object concat(Token operator, Object left, Object right) {
+        long length = length(left) + length(right);
+        if (length > MAX_LENGTH) {
+            throw new RuntimeError(operator, "Resulting string is too long.");
+        }
+        if (length(left) == 0) return right;
+        if (length(right) == 0) return left;
+        if (length < FLATTEN_BELOW) return left.toString() + right.toString();
+
+        // Appending a short piece to a rope that ends in a short piece grows
+        // that last leaf instead of the tree.
+        if (left instanceof Concat && ((Concat) left).right instanceof String
+                && length(((Concat) left).right) + length(right) < FLATTEN_BELOW) {
+            Concat tail = (Concat) left;
+            return new Concat(tail.left, tail.right + right.toString(), length);
+        }
+
+        Concat concat = new Concat(left, right, length);
+        return depth(concat) > MAX_DEPTH ? rebalance(concat) : concat;
+    }
+
+    /**
+     * Repeats a Lox string, returning either a String or a Rope.
+     */
+    static Object repeat(Token operator, Object string, long times) {
+        if (times <= 0 || length(string) == 0) return "";
+        if (times == 1) return string;
+
+        long length = length(string) * times;
+        if (times > MAX_LENGTH || length > MAX_LENGTH) {
+            throw new RuntimeError(operator, "Resulting string is too long.");
+        }
+        if (length < FLATTEN_BELOW) return string.toString().repeat((int) times);
+        return new Repeat(string.toString(), times, length);
+    }
+
+    /**
+     * A string viewing UTF-8 bytes in a buffer without copying them. The
+     * caller has already counted the characters the bytes decode to.
+     */
+    static Rope bytes(ByteBuffer buffer, int offset, int byteLength, int charLength, boolean ascii) {
+        return new Bytes(buffer, offset, byteLength, charLength, ascii);
+    }
+
+    /**
+     * Returns the undecoded bytes of a string that is still a view of a
+     * buffer, or null for any other string.
+     */
+    static ByteBuffer rawBytes(Object string) {
+        return string instanceof Bytes ? ((Bytes) string).slice() : null;
+    }
+
+    private static long length(Object string) {
+        return ((CharSequence) string).length();
+    }
+
+    private static int depth(Object string) {
+        return string instanceof Rope ? ((Rope) string).depth : 0;
+    }
+
+    /**
+     * Rebuilds a lopsided concatenation as a balanced tree over the same
+     * leaves, merging neighbouring short leaves on the way.
+     */
+    private static Object rebalance(Rope rope) {
+        List<Object> leaves = new ArrayList<>();
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(rope);
+        while (!pending.isEmpty()) {
+            Object node = pending.pop();
+            if (node instanceof Rope && ((Rope) node).flat != null) {
+                node = ((Rope) node).flat;
+            } else if (node instanceof Concat) {
+                pending.push(((Concat) node).right);
+                pending.push(((Concat) node).left);
+                continue;
+            }
+
+            int last = leaves.size() - 1;
+            if (last >= 0 && length(leaves.get(last)) + length(node) < FLATTEN_BELOW) {
+                leaves.set(last, leaves.get(last).toString() + node.toString());
+            } else {
+                leaves.add(node);
+            }
+        }
+        return build(leaves, 0, leaves.size());
+    }
+
+    private static Object build(List<Object> leaves, int from, int to) {
+        if (to - from == 1) return leaves.get(from);
+        int middle = (from + to) >>> 1;
+        Object left = build(leaves, from, middle);
+        Object right = build(leaves, middle, to);
+        return new Concat(left, right, length(left) + length(right));
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) {
+            StringBuilder builder = new StringBuilder(length);
+            appendTo(builder);
+            flat = builder.toString();
+        }
+        return flat;
+    }
+
+    abstract void appendTo(StringBuilder builder);
+
+    private static void append(Object string, StringBuilder builder) {
+        if (string instanceof Rope && ((Rope) string).flat == null) {
+            ((Rope) string).appendTo(builder);
+        } else {
+            builder.append(string.toString());
+        }
+    }
+
+    private static class Concat extends Rope {
+        final Object left;
+        final Object right;
+
+        Concat(Object left, Object right, long length) {
+            super(length, Math.max(depth(left), depth(right)) + 1);
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        void appendTo(StringBuilder builder) {
+            append(left, builder);
+            append(right, builder);
+        }
+    }
+
+    private static class Bytes extends Rope {
+        final ByteBuffer buffer;
+        final int offset;
+        final int byteLength;
+        final boolean ascii;
+
+        Bytes(ByteBuffer buffer, int offset, int byteLength, int charLength, boolean ascii) {
+            super(charLength, 1);
+            this.buffer = buffer;
+            this.offset = offset;
+            this.byteLength = byteLength;
+            this.ascii = ascii;
+        }
+
+        ByteBuffer slice() {
+            return buffer.duplicate().position(offset).limit(offset + byteLength);
+        }
+
+        @Override
+        public char charAt(int index) {
+            // ASCII bytes are their own characters; no need to decode the rest.
+            if (ascii) return (char) buffer.get(offset + index);
+            return super.charAt(index);
+        }
+
+        @Override
+        void appendTo(StringBuilder builder) {
+            if (ascii) {
+                for (int i = 0; i < byteLength; i++) {
+                    builder.append((char) buffer.get(offset + i));
+                }
+            } else {
+                builder.append(StandardCharsets.UTF_8.decode(slice()));
+            }
+        }
+    }
+
+    private static class Repeat extends Rope {
+        final String string;
+        final long times;
+
+        Repeat(String string, long times, long length) {
+            super(length, 1);
+            this.string = string;
+            this.times = times;
+        }
+
+        @Override
+        void appendTo(StringBuilder builder) {
+            for (long i = 0; i < times; i++) {
+                builder.append(string);
+            }
+        }
+    }
+}
@@ -1,56 +1,90 @@
 package jlox;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static jlox.TokenType.*;
 
 class Scanner {
+    // Whether VectorScan can be used: it needs the JVM started with
+    // --add-modules jdk.incubator.vector, and the module is looked up here
+    // because VectorScan fails to load without it.
+    static final boolean VECTOR_API = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    // Scan runs of whitespace, comments and strings with VectorScan, when
+    // asked to with -Djlox.vectorScan=true. It is off by default since it is
+    // slower than the plain scan until C2 compiles it, which a short script
+    // or a REPL line never waits for.
+    static final boolean VECTORIZED = VECTOR_API && Boolean.getBoolean("jlox.vectorScan");
+    // Below this many characters a source is scanned a character at a time
+    // even when VECTORIZED: copying it for VectorScan would cost more than
+    // the vectors save.
+    private static final int MIN_VECTORIZED_LENGTH = 16 * 1024;
+
     private final String source;
+    // The source again, for VectorScan; null when scanning a character at a
+    // time.
+    private final char[] chars;
     private final List<Token> tokens = new ArrayList<>();
     private int start = 0;
     private int current = 0;
     private int line = 1;
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",    AND);
-        keywords.put("class",  CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUN);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        keywords.put("xor",    XOR);
-        keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VAR);
-        keywords.put("while",  WHILE);
+
+    Scanner (String source) {
+        this(source, VECTORIZED && source.length() >= MIN_VECTORIZED_LENGTH);
     }
 
+    Scanner (String source, boolean vectorized) {
+        this.source = source;
+        this.chars = vectorized ? source.toCharArray() : null;
+    }
 
-    Scanner (String source) {
+    /**
+     * A scanner that starts part way through the source, at a point between
+     * two tokens, for rescanning just the region around an edit.
+     */
+    Scanner (String source, int offset, int line) {
         this.source = source;
+        // Only the few tokens around an edit get scanned, not worth copying
+        // the whole source for.
+        this.chars = null;
+        this.current = offset;
+        this.line = line;
     }
 
     List<Token> scanTokens() {
+        LoxEvents.PhaseEvent event = LoxEvents.enabled() ? new LoxEvents.PhaseEvent("scan") : null;
+        if (event != null) event.begin();
+
         while (!isAtEnd()) {
             start = current;
             scanToken();
         }
 
         tokens.add(new Token(EOF, "", null, line, current));
+
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.tokens = tokens.size();
+                event.commit();
+            }
+        }
         return tokens;
     }
 
+    /**
+     * Scans the next token only, returning EOF once the source runs out.
+     */
+    Token nextToken() {
+        int scanned = tokens.size();
+        while (!isAtEnd() && tokens.size() == scanned) {
+            start = current;
+            scanToken();
+        }
+        if (tokens.size() == scanned) return new Token(EOF, "", null, line, current);
+        return tokens.get(scanned);
+    }
+
     private boolean isAtEnd() {
         return current >= source.length(); // TODO: when would this be greater than?
     }
@@ -62,6 +96,8 @@ class Scanner {
             case ')': addToken(RIGHT_PAREN); break;
             case '{': addToken(LEFT_BRACE); break;
             case '}': addToken(RIGHT_BRACE); break;
+            case '[': addToken(LEFT_BRACKET); break;
+            case ']': addToken(RIGHT_BRACKET); break;
             case ',': addToken(COMMA); break;
             case '.': addToken(DOT); break;
             case '-': addToken(MINUS); break;
@@ -76,7 +112,11 @@ class Scanner {
             case '>': addToken(match('=') ? GREATER_EQUAL : GREATER); break;
             case '/':
                 if (match('/')) {
-                    while (peek() != '\n' && !isAtEnd()) advance();
+                    if (chars != null) {
+                        current = VectorScan.indexOf(chars, current, '\n');
+                    } else {
+                        while (peek() != '\n' && !isAtEnd()) advance();
+                    }
                 } else if (match('*')) {
                     // TODO: add nested multiline comments
                     int commentStart = line;
@@ -84,9 +124,15 @@ class Scanner {
                     advance();
                     boolean insideMultilineComment = true;
                     while(insideMultilineComment && !isAtEnd()) {
-                        while (peek() != '*' && !isAtEnd()) {
-                            if (peek() == '\n') line++;
-                            advance();
+                        if (chars != null) {
+                            int star = VectorScan.indexOf(chars, current, '*');
+                            line += VectorScan.countNewlines(chars, current, star);
+                            current = star;
+                        } else {
+                            while (peek() != '*' && !isAtEnd()) {
+                                if (peek() == '\n') line++;
+                                advance();
+                            }
                         }
                         if (isAtEnd()) {
                             Lox.error(line, String.format("Unended multiline comment that started on line %d.", commentStart));
@@ -109,9 +155,11 @@ class Scanner {
             case '\r':
             case '\t':
                 // Ignore whitespace.
+                if (chars != null) skipWhitespace();
                 break;
             case '\n':
                 line++;
+                if (chars != null) skipWhitespace();
                 break;
             case '"': string(); break;
             // TODO: Bitwise operators
@@ -127,13 +175,50 @@ class Scanner {
         }
     }
 
+    /**
+     * Skips the rest of a run of whitespace at once. Most runs are a single
+     * space between two tokens, which is not worth a vector.
+     */
+    private void skipWhitespace() {
+        char c = peek();
+        if (c != ' ' && c != '\t' && c != '\r' && c != '\n') return;
+        int end = VectorScan.skipWhitespace(chars, current);
+        line += VectorScan.countNewlines(chars, current, end);
+        current = end;
+    }
+
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
         String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER; // if null, it's not a reserved word
-        addToken(type);
+        addToken(keyword(text));
+    }
+
+    // A switch rather than a map, so there is nothing to build when the
+    // class loads.
+    private static TokenType keyword(String text) {
+        switch (text) {
+            case "and":    return AND;
+            case "class":  return CLASS;
+            case "else":   return ELSE;
+            case "false":  return FALSE;
+            case "for":    return FOR;
+            case "fun":    return FUN;
+            case "if":     return IF;
+            case "nil":    return NIL;
+            case "or":     return OR;
+            case "xor":    return XOR;
+            case "pfor":   return PFOR;
+            case "print":  return PRINT;
+            case "return": return RETURN;
+            case "spawn":  return SPAWN;
+            case "super":  return SUPER;
+            case "this":   return THIS;
+            case "true":   return TRUE;
+            case "var":    return VAR;
+            case "while":  return WHILE;
+            default:       return IDENTIFIER;
+        }
     }
 
     private boolean isAlphaNumeric(char c) {
@@ -149,20 +234,22 @@ class Scanner {
     }
 
     private void number() {
-        // boolean isDouble = false;
+        boolean isDouble = false;
         while(isNumber(peek())) advance();
 
         if(peek() == '.' && isNumber(peekNext())) {
             advance(); // this is the decimal
-            // isDouble = true;
+            isDouble = true;
             while(isNumber(peek())) advance();
         }
-        // if (isDouble) {
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current))); // TODO: this uses Java's double parser, write my own parser instead
-        // } 
-        // else {
-        //     addToken(NUMBER, Integer.parseInt(source.substring(start, current)));
-        // }
+
+        String text = source.substring(start, current);
+        // 15 digits always fit in the range where longs and doubles agree, see Numbers.
+        if (!isDouble && text.length() <= 15) {
+            addToken(NUMBER, Long.parseLong(text));
+        } else {
+            addToken(NUMBER, Double.parseDouble(text)); // TODO: this uses Java's double parser, write my own parser instead
+        }
     }
 
     private boolean isNumber(char c) {
@@ -170,9 +257,15 @@ class Scanner {
     }
 
     private void string() {
-        while(peek() != '"' && !isAtEnd()) {
-            if (peek() == '\n') line ++;
-            advance();
+        if (chars != null) {
+            int quote = VectorScan.indexOf(chars, current, '"');
+            line += VectorScan.countNewlines(chars, current, quote);
+            current = quote;
+        } else {
+            while(peek() != '"' && !isAtEnd()) {
+                if (peek() == '\n') line ++;
+                advance();
+            }
         }
         // we have either reached the end of the string or end of file
         
@@ -183,7 +276,8 @@ class Scanner {
 
         advance(); // if we reach here, we are at the closing "
 
-        String value = source.substring(start + 1, current - 1); // does not include the quotes.
+        // Interned so that map lookups with the same literal key match by identity.
+        String value = source.substring(start + 1, current - 1).intern(); // does not include the quotes.
         addToken(STRING, value);
     }
 
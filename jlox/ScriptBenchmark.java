@@ -0,0 +1,183 @@
+package jlox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Implements {@code jlox --bench}: runs a script repeatedly in-process, times
+ * the scan, parse and execute phases separately and optionally gates the
+ * result against a stored baseline.
+ */
+class ScriptBenchmark {
+    static final int REGRESSION = 1;
+
+    private static final String[] PHASES = {"scan", "parse", "execute"};
+    private static final String USAGE = "Usage jlox --bench [--warmup M] [--runs N] [--output results.json] "
+            + "[--baseline baseline.json] [--tolerance percent] script";
+
+    private int warmup = 5;
+    private int runs = 20;
+    private double tolerance = 10;
+    private String output;
+    private String baseline;
+    private String script;
+
+    static int run(String[] args) throws IOException {
+        ScriptBenchmark benchmark = new ScriptBenchmark();
+        if (!benchmark.parseArguments(args)) {
+            System.err.println(USAGE);
+            return 64;
+        }
+        return benchmark.run();
+    }
+
+    private boolean parseArguments(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+                    case "--runs": runs = Integer.parseInt(args[++i]); break;
+                    case "--tolerance": tolerance = Double.parseDouble(args[++i]); break;
+                    case "--output": output = args[++i]; break;
+                    case "--baseline": baseline = args[++i]; break;
+                    default:
+                        if (args[i].startsWith("--") || script != null) return false;
+                        script = args[i];
+                        break;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            return false;
+        }
+        return script != null && warmup >= 0 && runs > 0 && tolerance >= 0;
+    }
+
+    private int run() throws IOException {
+        String source = new String(Files.readAllBytes(Paths.get(script)), Charset.defaultCharset());
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+        long[][] samples = new long[PHASES.length][runs];
+        for (int i = 0; i < warmup + runs; i++) {
+            long[] timings = runOnce(source, sink);
+            if (Lox.hadError) return 65;
+            if (Lox.hadRuntimeError) return 70;
+            if (i < warmup) continue;
+            for (int phase = 0; phase < PHASES.length; phase++) {
+                samples[phase][i - warmup] = timings[phase];
+            }
+        }
+
+        Map<String, long[]> results = new LinkedHashMap<>();
+        for (int phase = 0; phase < PHASES.length; phase++) {
+            long[] sorted = samples[phase];
+            Arrays.sort(sorted);
+            results.put(PHASES[phase], new long[] {
+                    sorted[0], percentile(sorted, 0.50), percentile(sorted, 0.99), sorted[sorted.length - 1]
+            });
+        }
+
+        String json = toJson(results);
+        if (output != null) {
+            Files.write(Paths.get(output), json.getBytes(Charset.defaultCharset()));
+        } else {
+            System.out.print(json);
+        }
+
+        if (baseline == null) return 0;
+        return compareToBaseline(results, Paths.get(baseline)) ? 0 : REGRESSION;
+    }
+
+    /**
+     * Runs every phase against a fresh interpreter so no global state leaks
+     * from one run into the next, and returns the nanoseconds spent per phase.
+     */
+    private long[] runOnce(String source, PrintStream sink) {
+        Lox.hadError = false;
+        Lox.hadRuntimeError = false;
+        long[] timings = new long[PHASES.length];
+
+        long start = System.nanoTime();
+        List<Token> tokens = new Scanner(source).scanTokens();
+        long scanned = System.nanoTime();
+        List<Statement> statements = new RecursiveParser(tokens).parse();
+        int slots = 0;
+        if (!Lox.hadError) {
+            slots = new Resolver().resolve(statements);
+        }
+        long parsed = System.nanoTime();
+        if (!Lox.hadError) {
+            new Interpreter(sink).interpret(statements, slots, false);
+        }
+        long executed = System.nanoTime();
+
+        timings[0] = scanned - start;
+        timings[1] = parsed - scanned;
+        timings[2] = executed - parsed;
+        return timings;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int rank = (int) Math.ceil(percentile * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+
+    private String toJson(Map<String, long[]> results) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"script\": \"").append(script.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+        json.append("  \"warmup\": ").append(warmup).append(",\n");
+        json.append("  \"runs\": ").append(runs).append(",\n");
+        json.append("  \"unit\": \"ns\",\n");
+        json.append("  \"phases\": {\n");
+        int remaining = results.size();
+        for (Map.Entry<String, long[]> phase : results.entrySet()) {
+            long[] stats = phase.getValue();
+            json.append(String.format("    \"%s\": {\"min\": %d, \"p50\": %d, \"p99\": %d, \"max\": %d}",
+                    phase.getKey(), stats[0], stats[1], stats[2], stats[3]));
+            json.append(--remaining > 0 ? ",\n" : "\n");
+        }
+        json.append("  }\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    /**
+     * Compares each phase's median against the baseline file written by an
+     * earlier {@code --bench --output} run. Returns false on any regression
+     * beyond the tolerance.
+     */
+    private boolean compareToBaseline(Map<String, long[]> results, Path path) throws IOException {
+        String json = new String(Files.readAllBytes(path), Charset.defaultCharset());
+        boolean passed = true;
+
+        for (Map.Entry<String, long[]> phase : results.entrySet()) {
+            Matcher matcher = Pattern.compile("\"" + phase.getKey() + "\"\\s*:\\s*\\{[^}]*\"p50\"\\s*:\\s*(\\d+)")
+                    .matcher(json);
+            if (!matcher.find()) {
+                System.err.println(String.format("Baseline %s has no p50 for phase %s.", path, phase.getKey()));
+                passed = false;
+                continue;
+            }
+
+            long expected = Long.parseLong(matcher.group(1));
+            long actual = phase.getValue()[1];
+            double change = expected == 0 ? 0 : (actual - expected) * 100.0 / expected;
+            boolean regressed = actual > expected * (1 + tolerance / 100);
+            System.err.println(String.format("%-8s p50 %12d ns  baseline %12d ns  %+7.2f%%%s",
+                    phase.getKey(), actual, expected, change, regressed ? "  REGRESSION" : ""));
+            passed &= !regressed;
+        }
+        return passed;
+    }
+}
@@ -0,0 +1,58 @@
+package jlox;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A hidden class: the layout shared by every instance that got the same
+ * fields in the same order. An instance keeps its field values in a plain
+ * array and points at its shape to find which slot holds which field.
+ * Adding a field moves an instance to the next shape along a transition
+ * that is created once and then shared, so instances built the same way end
+ * up with the same shape and a property site can cache a lookup per shape.
+ *
+ * Each class has its own root shape, so a shape also identifies the class
+ * its instances belong to.
+ */
+final class Shape {
+    final LoxClass klass;
+    final int size;
+    private final String[] names;
+    private final Map<String, Shape> transitions = new ConcurrentHashMap<>();
+
+    Shape(LoxClass klass) {
+        this(klass, new String[0]);
+    }
+
+    private Shape(LoxClass klass, String[] names) {
+        this.klass = klass;
+        this.size = names.length;
+        this.names = names;
+    }
+
+    /**
+     * Returns the slot of a field, or -1. A linear scan is fine here: lookups
+     * only happen on inline cache misses, and instances rarely have more than
+     * a handful of fields.
+     */
+    int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    String name(int index) {
+        return names[index];
+    }
+
+    Shape with(String name) {
+        return transitions.computeIfAbsent(name, key -> {
+            String[] extended = Arrays.copyOf(names, names.length + 1);
+            extended[names.length] = key;
+            klass.expectFields(extended.length);
+            return new Shape(klass, extended);
+        });
+    }
+}
@@ -0,0 +1,489 @@
+package jlox;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The globals a prelude script leaves behind, saved next to it as
+ * prelude.lox.snapshot so later runs can load them instead of running the
+ * prelude again. A snapshot is only used while the SHA-256 of the prelude's
+ * source matches the one it was made from.
+ *
+ * Values are saved as a graph, so an object reachable along two paths is
+ * still one object after loading, and cycles survive. The file holds a
+ * table of objects: first the shell of each, which is all that is needed to
+ * create it (a class's superclass, an instance's class, a bound method's
+ * receiver), then the contents of each (elements, fields, methods, captured
+ * values), then the globals. A shell only refers to objects before it, so
+ * loading creates every object in one pass and fills them in on a second.
+ *
+ * Functions point back into the prelude's syntax tree, which is not saved:
+ * loading parses and resolves the prelude again, which is quick next to
+ * running it, and a function is saved as the position of its declaration
+ * among the ones the parser made.
+ */
+final class Snapshot {
+    private static final int MAGIC = 0x4C4F5853; // "LOXS"
+    private static final int VERSION = 1;
+
+    // Values.
+    private static final byte NIL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte OBJECT = 5;
+
+    // Shells.
+    private static final byte STRING = 10;
+    private static final byte NATIVE = 11;
+    private static final byte CLASS = 12;
+    private static final byte INSTANCE = 13;
+    private static final byte FUNCTION = 14;
+    private static final byte BOX = 15;
+    private static final byte LIST = 16;
+    private static final byte MAP = 17;
+
+    /**
+     * A value no snapshot can hold, such as an open reader.
+     */
+    private static final class Unsavable extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsavable(Object value) {
+            super(String.format("a global refers to %s", Interpreter.stringify(value)));
+        }
+    }
+
+    /**
+     * A snapshot file that does not read back as one.
+     */
+    private static final class Damaged extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Damaged(String message) {
+            super(message);
+        }
+    }
+
+    private Snapshot() {
+    }
+
+    /**
+     * Defines the prelude's globals in the interpreter, from its snapshot
+     * when there is a current one and otherwise by running it and then
+     * saving a new snapshot. Errors are reported as for any script.
+     */
+    static void prelude(Path prelude, Interpreter interpreter) throws IOException {
+        byte[] bytes = Files.readAllBytes(prelude);
+        String source = new String(bytes, Charset.defaultCharset());
+        RecursiveParser parser = new RecursiveParser(new Scanner(source).scanTokens());
+        List<Statement> statements = parser.parse();
+        if (Lox.hadError) return;
+        int slots = new Resolver().resolve(statements);
+        if (Lox.hadError) return;
+
+        Map<Object, String> natives = new IdentityHashMap<>();
+        interpreter.globals.values().forEach((name, value) -> natives.put(value, name));
+        Path snapshot = Paths.get(prelude + ".snapshot");
+        byte[] hash = hash(bytes);
+        if (Files.exists(snapshot) && load(snapshot, hash, parser.functions(), interpreter.globals)) return;
+
+        // A plain interpreter on the same globals, so a profiling one passed
+        // in reports on the script alone, once.
+        new Interpreter(interpreter, false).interpret(statements, slots, false);
+        if (Lox.hadError || Lox.hadRuntimeError) return;
+        try {
+            save(snapshot, hash, parser.functions(), natives, interpreter.globals.values());
+        } catch (Unsavable e) {
+            System.err.println(String.format("[snapshot] not saved: %s.", e.getMessage()));
+        }
+    }
+
+    private static byte[] hash(byte[] source) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(source);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void save(Path snapshot, byte[] hash, List<Statement.Function> functions,
+                             Map<Object, String> natives, Map<String, Object> globals) throws IOException {
+        Writer writer = new Writer(functions, natives);
+        for (Object value : globals.values()) {
+            writer.discover(value);
+        }
+        writer.discoverContents();
+
+        // Written aside and moved into place, so a run that loads the
+        // snapshot never sees half of one.
+        Path partial = Paths.get(snapshot + ".partial");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(partial)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(hash);
+            writer.write(out, globals);
+        }
+        Files.move(partial, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Defines the globals saved in a snapshot, returning false without
+     * defining any if the snapshot is not one of this prelude's source.
+     */
+    private static boolean load(Path snapshot, byte[] hash, List<Statement.Function> functions, Globals globals)
+            throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        Map<String, Object> defined = globals.values();
+        try {
+            byte[] saved = new byte[hash.length];
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) return false;
+            in.get(saved);
+            if (!Arrays.equals(saved, hash)) {
+                System.err.println("[snapshot] the prelude has changed; running it again.");
+                return false;
+            }
+            Map<String, Object> values = new Reader(in, functions, defined).read();
+            values.forEach((name, value) -> globals.cell(name).define(value));
+            return true;
+        } catch (RuntimeException e) {
+            // Running off the end, a bad index or a value of the wrong kind
+            // all mean the file is not what was written.
+            System.err.println("[snapshot] the snapshot is damaged; running the prelude again.");
+            return false;
+        }
+    }
+
+    private static final class Writer {
+        private final Map<Statement.Function, Integer> declarations = new IdentityHashMap<>();
+        private final Map<Object, String> natives;
+        private final Map<Object, Integer> ids = new IdentityHashMap<>();
+        private final List<Object> objects = new ArrayList<>();
+        // Objects whose contents have not been looked through yet.
+        private final Deque<Object> pending = new ArrayDeque<>();
+
+        Writer(List<Statement.Function> functions, Map<Object, String> natives) {
+            for (int i = 0; i < functions.size(); i++) {
+                declarations.put(functions.get(i), i);
+            }
+            this.natives = natives;
+        }
+
+        /**
+         * Gives an object its place in the table, after whatever its shell
+         * refers to.
+         */
+        void discover(Object value) {
+            if (value == null || value instanceof Boolean || value instanceof Long || value instanceof Double) return;
+            if (ids.containsKey(value)) return;
+
+            if (value instanceof LoxClass) {
+                discover(((LoxClass) value).superclass);
+            } else if (value instanceof LoxInstance) {
+                discover(((LoxInstance) value).shape.klass);
+            } else if (value instanceof LoxFunction) {
+                LoxFunction function = (LoxFunction) value;
+                if (!declarations.containsKey(function.declaration)) throw new Unsavable(value);
+                discover(function.receiver);
+            } else if (!Rope.isString(value) && !(value instanceof Box) && !(value instanceof LoxList)
+                    && !(value instanceof LoxMap) && !natives.containsKey(value)) {
+                throw new Unsavable(value);
+            }
+            ids.put(value, objects.size());
+            objects.add(value);
+            pending.push(value);
+        }
+
+        /**
+         * Discovers everything reachable from what has been discovered,
+         * without recursing along the contents, so a long chain of
+         * instances does not overflow the stack.
+         */
+        void discoverContents() {
+            while (!pending.isEmpty()) {
+                Object value = pending.pop();
+                if (value instanceof LoxClass) {
+                    for (LoxFunction method : ((LoxClass) value).methods()) {
+                        discover(method);
+                    }
+                } else if (value instanceof LoxInstance) {
+                    LoxInstance instance = (LoxInstance) value;
+                    for (int i = 0; i < instance.shape.size; i++) {
+                        discover(instance.fields[i]);
+                    }
+                } else if (value instanceof LoxFunction) {
+                    for (Object captured : ((LoxFunction) value).captures) {
+                        discover(captured);
+                    }
+                } else if (value instanceof Box) {
+                    discover(((Box) value).value);
+                } else if (value instanceof LoxList) {
+                    LoxList list = (LoxList) value;
+                    for (int i = 0; i < list.size(); i++) {
+                        discover(list.get(i));
+                    }
+                } else if (value instanceof LoxMap) {
+                    LoxMap map = (LoxMap) value;
+                    LoxList keys = map.keys();
+                    LoxList values = map.values();
+                    for (int i = 0; i < keys.size(); i++) {
+                        discover(keys.get(i));
+                        discover(values.get(i));
+                    }
+                }
+            }
+        }
+
+        void write(DataOutputStream out, Map<String, Object> globals) throws IOException {
+            out.writeInt(objects.size());
+            for (Object value : objects) {
+                writeShell(out, value);
+            }
+            for (Object value : objects) {
+                writeContents(out, value);
+            }
+            out.writeInt(globals.size());
+            for (Map.Entry<String, Object> global : globals.entrySet()) {
+                writeString(out, global.getKey());
+                writeValue(out, global.getValue());
+            }
+        }
+
+        private void writeShell(DataOutputStream out, Object value) throws IOException {
+            if (natives.containsKey(value)) {
+                out.writeByte(NATIVE);
+                writeString(out, natives.get(value));
+            } else if (Rope.isString(value)) {
+                out.writeByte(STRING);
+                writeString(out, value.toString());
+            } else if (value instanceof LoxClass) {
+                LoxClass klass = (LoxClass) value;
+                out.writeByte(CLASS);
+                writeString(out, klass.name);
+                writeValue(out, klass.superclass);
+            } else if (value instanceof LoxInstance) {
+                out.writeByte(INSTANCE);
+                writeValue(out, ((LoxInstance) value).shape.klass);
+            } else if (value instanceof LoxFunction) {
+                LoxFunction function = (LoxFunction) value;
+                out.writeByte(FUNCTION);
+                out.writeInt(declarations.get(function.declaration));
+                writeValue(out, function.receiver);
+                out.writeInt(function.captures.length);
+            } else if (value instanceof Box) {
+                out.writeByte(BOX);
+            } else if (value instanceof LoxList) {
+                out.writeByte(LIST);
+            } else {
+                out.writeByte(MAP);
+            }
+        }
+
+        private void writeContents(DataOutputStream out, Object value) throws IOException {
+            if (natives.containsKey(value)) return;
+            if (value instanceof LoxClass) {
+                LoxClass klass = (LoxClass) value;
+                out.writeInt(klass.methods().size());
+                for (LoxFunction method : klass.methods()) {
+                    writeValue(out, method);
+                }
+            } else if (value instanceof LoxInstance) {
+                LoxInstance instance = (LoxInstance) value;
+                out.writeInt(instance.shape.size);
+                for (int i = 0; i < instance.shape.size; i++) {
+                    writeString(out, instance.shape.name(i));
+                    writeValue(out, instance.fields[i]);
+                }
+            } else if (value instanceof LoxFunction) {
+                for (Object captured : ((LoxFunction) value).captures) {
+                    writeValue(out, captured);
+                }
+            } else if (value instanceof Box) {
+                writeValue(out, ((Box) value).value);
+            } else if (value instanceof LoxList) {
+                LoxList list = (LoxList) value;
+                out.writeInt(list.size());
+                for (int i = 0; i < list.size(); i++) {
+                    writeValue(out, list.get(i));
+                }
+            } else if (value instanceof LoxMap) {
+                LoxMap map = (LoxMap) value;
+                LoxList keys = map.keys();
+                LoxList values = map.values();
+                out.writeInt(keys.size());
+                for (int i = 0; i < keys.size(); i++) {
+                    writeValue(out, keys.get(i));
+                    writeValue(out, values.get(i));
+                }
+            }
+        }
+
+        private void writeValue(DataOutputStream out, Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NIL);
+            } else if (value instanceof Boolean) {
+                out.writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else {
+                out.writeByte(OBJECT);
+                out.writeInt(ids.get(value));
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String string) throws IOException {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static final class Reader {
+        private final ByteBuffer in;
+        private final List<Statement.Function> functions;
+        private final Map<String, Object> natives;
+        private Object[] objects;
+
+        Reader(ByteBuffer in, List<Statement.Function> functions, Map<String, Object> natives) {
+            this.in = in;
+            this.functions = functions;
+            this.natives = natives;
+        }
+
+        Map<String, Object> read() {
+            objects = new Object[in.getInt()];
+            for (int i = 0; i < objects.length; i++) {
+                objects[i] = readShell();
+            }
+            for (Object value : objects) {
+                readContents(value);
+            }
+
+            int count = in.getInt();
+            Map<String, Object> globals = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                String name = readString();
+                globals.put(name, readValue());
+            }
+            return globals;
+        }
+
+        private Object readShell() {
+            byte kind = in.get();
+            switch (kind) {
+                case STRING:
+                    return readString();
+                case NATIVE: {
+                    Object value = natives.get(readString());
+                    if (value == null) throw new Damaged("Unknown native.");
+                    return value;
+                }
+                case CLASS: {
+                    String name = readString();
+                    return new LoxClass(name, (LoxClass) readValue());
+                }
+                case INSTANCE:
+                    return new LoxInstance((LoxClass) readValue());
+                case FUNCTION: {
+                    Statement.Function declaration = functions.get(in.getInt());
+                    Object receiver = readValue();
+                    LoxFunction function = new LoxFunction(declaration, new Object[in.getInt()]);
+                    return receiver == null ? function : function.bind(receiver);
+                }
+                case BOX:
+                    return new Box(null, null);
+                case LIST:
+                    return new LoxList(0);
+                case MAP:
+                    return new LoxMap();
+                default:
+                    throw new Damaged(String.format("Unknown object kind %d.", kind));
+            }
+        }
+
+        private void readContents(Object value) {
+            if (value instanceof LoxClass) {
+                LoxClass klass = (LoxClass) value;
+                int count = in.getInt();
+                for (int i = 0; i < count; i++) {
+                    klass.define((LoxFunction) readValue());
+                }
+            } else if (value instanceof LoxInstance) {
+                LoxInstance instance = (LoxInstance) value;
+                int count = in.getInt();
+                for (int i = 0; i < count; i++) {
+                    Shape shape = instance.shape.with(readString());
+                    instance.put(i, shape, readValue());
+                }
+            } else if (value instanceof LoxFunction) {
+                Object[] captures = ((LoxFunction) value).captures;
+                for (int i = 0; i < captures.length; i++) {
+                    captures[i] = readValue();
+                }
+            } else if (value instanceof Box) {
+                ((Box) value).value = readValue();
+            } else if (value instanceof LoxList) {
+                LoxList list = (LoxList) value;
+                int count = in.getInt();
+                for (int i = 0; i < count; i++) {
+                    list.append(readValue());
+                }
+            } else if (value instanceof LoxMap) {
+                LoxMap map = (LoxMap) value;
+                int count = in.getInt();
+                for (int i = 0; i < count; i++) {
+                    Object key = readValue();
+                    map.put(key, readValue());
+                }
+            }
+        }
+
+        private Object readValue() {
+            byte tag = in.get();
+            switch (tag) {
+                case NIL: return null;
+                case TRUE: return true;
+                case FALSE: return false;
+                case LONG: return in.getLong();
+                case DOUBLE: return in.getDouble();
+                case OBJECT: return objects[in.getInt()];
+                default: throw new Damaged(String.format("Unknown value tag %d.", tag));
+            }
+        }
+
+        private String readString() {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
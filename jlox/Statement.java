@@ -15,6 +15,20 @@ abstract class Statement {
         R visitIfStatement(If statement);
 
         R visitWhileStatement(While statement);
+
+        R visitFunctionStatement(Function statement);
+
+        R visitReturnStatement(Return statement);
+
+        R visitClassStatement(Class statement);
+
+        R visitParallelForStatement(ParallelFor statement);
+
+        R visitSpawnStatement(Spawn statement);
+
+        R visitLazyBlockStatement(LazyBlock statement);
+
+        R visitInstrumentedStatement(Instrumented statement);
     }
 
     static class Expression extends Statement {
@@ -53,6 +67,11 @@ abstract class Statement {
 
         final Token name;
         final jlox.Expression initializer;
+
+        // Frame slot assigned by the Resolver, or -1 for a global.
+        int slot = -1;
+        boolean boxed;
+        Globals.Cell cell;
     }
 
     static class Block extends Statement {
@@ -84,7 +103,8 @@ abstract class Statement {
     }
 
     static class While extends Statement {
-        While(jlox.Expression condition, Statement body) {
+        While(Token keyword, jlox.Expression condition, Statement body) {
+            this.keyword = keyword;
             this.condition = condition;
             this.body = body;
         }
@@ -93,8 +113,160 @@ abstract class Statement {
             return visitor.visitWhileStatement(this);
         }
 
+        final Token keyword;
         final jlox.Expression condition;
         final Statement body;
+
+        // Iterations run so far, and the compiled loop once there were enough.
+        int backEdges;
+        LoopCompiler.Step compiled;
+    }
+
+    static class Function extends Statement {
+        Function(Token name, List<Token> params, List<Statement> body) {
+            this.name = name;
+            this.params = params;
+            this.body = body;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitFunctionStatement(this);
+        }
+
+        final Token name;
+        final List<Token> params;
+        final List<Statement> body;
+
+        // Set by the Resolver: where the function is bound (-1 for a global),
+        // how many slots a call needs for parameters and locals, which
+        // variables a closure copies when it is created, and whether the
+        // function escapes its declaring function at all.
+        int slot = -1;
+        int frameSize;
+        boolean boxed;
+        int[] boxedParams = new int[0];
+        LoxFunction.Capture[] captures = new LoxFunction.Capture[0];
+        boolean escapes = true;
+        boolean method;
+        boolean initializer;
+        Globals.Cell cell;
+        LoxFunction function;
+    }
+
+    static class Return extends Statement {
+        Return(Token keyword, jlox.Expression value) {
+            this.keyword = keyword;
+            this.value = value;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitReturnStatement(this);
+        }
+
+        final Token keyword;
+        final jlox.Expression value;
+    }
+
+    static class Class extends Statement {
+        Class(Token name, jlox.Expression.Variable superclass, List<Statement.Function> methods) {
+            this.name = name;
+            this.superclass = superclass;
+            this.methods = methods;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitClassStatement(this);
+        }
+
+        final Token name;
+        final jlox.Expression.Variable superclass;
+        final List<Statement.Function> methods;
+
+        // Set by the Resolver: where the class is bound (-1 for a global) and
+        // the slot that holds the superclass while its methods are created.
+        int slot = -1;
+        int superSlot = -1;
+        boolean boxed;
+        Globals.Cell cell;
+    }
+
+    static class ParallelFor extends Statement {
+        ParallelFor(Token keyword, jlox.Expression from, jlox.Expression to, List<Token> operators, List<jlox.Expression.Variable> targets, Statement.Function body) {
+            this.keyword = keyword;
+            this.from = from;
+            this.to = to;
+            this.operators = operators;
+            this.targets = targets;
+            this.body = body;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitParallelForStatement(this);
+        }
+
+        final Token keyword;
+        final jlox.Expression from;
+        final jlox.Expression to;
+        final List<Token> operators;
+        final List<jlox.Expression.Variable> targets;
+        final Statement.Function body;
+    }
+
+    static class Spawn extends Statement {
+        Spawn(Token keyword, jlox.Expression.Call call, Statement.Function body) {
+            this.keyword = keyword;
+            this.call = call;
+            this.body = body;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSpawnStatement(this);
+        }
+
+        final Token keyword;
+        final jlox.Expression.Call call;
+        final Statement.Function body;
+    }
+
+    static class LazyBlock extends Statement {
+        LazyBlock(Token brace, List<Token> tokens) {
+            this.brace = brace;
+            this.tokens = tokens;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLazyBlockStatement(this);
+        }
+
+        final Token brace;
+        final List<Token> tokens;
+
+        // Set by the Resolver: what it needs to resolve the body later. The
+        // body itself is parsed the first time the block runs.
+        Resolver.Deferred deferred;
+        volatile List<Statement> statements;
+
+        // Set by a strict parser, which has parsed the body already: its
+        // statements, taken by the first run instead of parsing it again.
+        List<Statement> parsed;
+    }
+
+    static class Instrumented extends Statement {
+        Instrumented(Statement statement, int line, Instrumentation.Probe probe, List<jlox.Expression.Variable> variables) {
+            this.statement = statement;
+            this.line = line;
+            this.probe = probe;
+            this.variables = variables;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitInstrumentedStatement(this);
+        }
+
+        final Statement statement;
+        final int line;
+        final Instrumentation.Probe probe;
+        final List<jlox.Expression.Variable> variables;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,95 @@
+package jlox;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The tasks started by spawn in one script. Each runs on a virtual thread
+ * when the JVM has them (Java 21 and later), so a blocked task parks without
+ * holding a carrier thread and costs only the stack it uses. On older JVMs,
+ * Java 17 included, each task needs a platform thread of its own, blocked or
+ * not, so at most jlox.maxTaskThreads tasks (256 by default) run at once
+ * and spawning more is an error rather than a wait that could deadlock on a
+ * channel. Those threads have the JVM's default stack size, so deep
+ * recursion in a task overflows sooner than on the main thread. The script
+ * waits for all of its tasks before it finishes.
+ */
+final class Tasks {
+    static final int MAX_THREADS = Integer.getInteger("jlox.maxTaskThreads", 256);
+
+    // Made on first use, so scripts that never spawn do not pay for it.
+    private static final class Executor {
+        static final ExecutorService INSTANCE = executor();
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition finished = lock.newCondition();
+    private int running = 0;
+
+    /**
+     * Starts a task, or returns false when there is no thread left for it.
+     */
+    boolean spawn(Runnable task) {
+        lock.lock();
+        try {
+            running++;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            Executor.INSTANCE.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    finish();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            finish();
+            return false;
+        }
+    }
+
+    private void finish() {
+        lock.lock();
+        try {
+            if (--running == 0) finished.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void awaitAll() {
+        lock.lock();
+        try {
+            while (running > 0) {
+                finished.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static ExecutorService executor() {
+        // Looked up reflectively so the interpreter still builds for Java 17.
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // No queue: a task waiting for a thread could be the one every
+            // running task is blocked on.
+            return new ThreadPoolExecutor(0, MAX_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "lox-task");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -4,8 +4,10 @@ public class Token {
     final TokenType type;
     final String lexeme;
     final Object literal;
-    final int line;
-    final int tokenPosition;
+    // Only moved by Watcher, when an edit earlier in the file shifts the
+    // tokens after it.
+    int line;
+    int tokenPosition;
 
     Token(TokenType type, String lexeme, Object literal, int line, int tokenPosition) {
         this.type = type;
@@ -15,6 +17,11 @@ public class Token {
         this.tokenPosition = tokenPosition;
     }
 
+    void shift(int lines, int characters) {
+        line += lines;
+        tokenPosition += characters;
+    }
+
     public String toString() {
         return type + " " + lexeme + " " + literal;
     }
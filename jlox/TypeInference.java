@@ -0,0 +1,386 @@
+package jlox;
+
+import java.util.Arrays;
+import java.util.List;
+
+import jlox.Expression.*;
+import jlox.Statement.*;
+
+/**
+ * A pass after the Resolver that works out, for each function, which of its
+ * locals are certainly numbers, strings, booleans or nil at each point, by
+ * following literals, arithmetic and assignments through the function's
+ * code. Branches join their types and loops are walked until the types
+ * settle. The result is written into Binary, Unary and Variable nodes, so the
+ * interpreter can skip operand checks it knows would pass.
+ *
+ * Operators applied to operands whose types prove the operation fails are
+ * reported as errors before the script runs. Anything uncertain, such as
+ * globals, parameters, call results and variables another function writes,
+ * is UNKNOWN and keeps its checks at run time.
+ */
+class TypeInference implements Expression.Visitor<LoxType>, Statement.Visitor<Void> {
+    // The known type of each slot of the function being walked.
+    private LoxType[] slots;
+    // Errors are only reported once a loop's types have settled.
+    private boolean reporting = true;
+
+    void infer(List<Statement> statements, int frameSize) {
+        slots = unknown(frameSize);
+        walk(statements);
+    }
+
+    private static LoxType[] unknown(int frameSize) {
+        LoxType[] types = new LoxType[frameSize];
+        Arrays.fill(types, LoxType.UNKNOWN);
+        return types;
+    }
+
+    private void walk(List<Statement> statements) {
+        for (Statement statement : statements) {
+            if (statement != null) statement.accept(this);
+        }
+    }
+
+    private LoxType infer(Expression expression) {
+        return expression.accept(this);
+    }
+
+    private void error(Token token, String message) {
+        if (reporting) Lox.error(token, message);
+    }
+
+    private static LoxType[] join(LoxType[] left, LoxType[] right) {
+        LoxType[] joined = new LoxType[left.length];
+        for (int i = 0; i < joined.length; i++) {
+            joined[i] = left[i].join(right[i]);
+        }
+        return joined;
+    }
+
+    /**
+     * Walks a nested function with nothing known about its parameters or
+     * the variables it captures.
+     */
+    private void function(Function declaration) {
+        LoxType[] enclosing = slots;
+        slots = unknown(declaration.frameSize);
+        walk(declaration.body);
+        slots = enclosing;
+    }
+
+    @Override
+    public Void visitExpressionStatement(Statement.Expression statement) {
+        infer(statement.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStatement(Print statement) {
+        infer(statement.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStatement(Var statement) {
+        LoxType type = statement.initializer != null ? infer(statement.initializer) : LoxType.NIL;
+        if (statement.slot >= 0) slots[statement.slot] = statement.boxed ? LoxType.UNKNOWN : type;
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStatement(Block statement) {
+        walk(statement.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStatement(If statement) {
+        infer(statement.condition);
+        LoxType[] before = slots.clone();
+        statement.thenBranch.accept(this);
+        LoxType[] afterThen = slots;
+        slots = before;
+        if (statement.elseBranch != null) statement.elseBranch.accept(this);
+        slots = join(afterThen, slots);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStatement(While statement) {
+        // The condition and body see the types on entry joined with the
+        // types after any number of iterations. Each slot can only widen
+        // to UNKNOWN, so this settles after a few rounds.
+        boolean wasReporting = reporting;
+        reporting = false;
+        LoxType[] entry = slots.clone();
+        while (true) {
+            slots = entry.clone();
+            infer(statement.condition);
+            statement.body.accept(this);
+            LoxType[] widened = join(entry, slots);
+            if (Arrays.equals(widened, entry)) break;
+            entry = widened;
+        }
+
+        // One last walk with the settled types leaves the right annotations.
+        reporting = wasReporting;
+        slots = entry.clone();
+        infer(statement.condition);
+        statement.body.accept(this);
+        slots = entry;
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStatement(Function statement) {
+        // The slot may have held a number for a variable of an earlier block.
+        if (statement.slot >= 0) slots[statement.slot] = LoxType.UNKNOWN;
+        function(statement);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStatement(Return statement) {
+        if (statement.value != null) infer(statement.value);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStatement(Statement.Class statement) {
+        if (statement.superclass != null) infer(statement.superclass);
+        if (statement.slot >= 0) slots[statement.slot] = LoxType.UNKNOWN;
+        if (statement.superSlot >= 0) slots[statement.superSlot] = LoxType.UNKNOWN;
+        for (Function method : statement.methods) {
+            function(method);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitParallelForStatement(ParallelFor statement) {
+        infer(statement.from);
+        infer(statement.to);
+        for (Variable target : statement.targets) {
+            infer(target);
+            // Reductions always combine to a number.
+            if (target.tracked) slots[target.slot] = LoxType.NUMBER;
+        }
+        function(statement.body);
+        return null;
+    }
+
+    @Override
+    public Void visitSpawnStatement(Spawn statement) {
+        if (statement.body != null) {
+            function(statement.body);
+            return null;
+        }
+        infer(statement.call.callee);
+        for (Expression argument : statement.call.arguments) {
+            infer(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLazyBlockStatement(LazyBlock statement) {
+        // Not parsed yet, so it could assign anything.
+        Arrays.fill(slots, LoxType.UNKNOWN);
+        return null;
+    }
+
+    @Override
+    public Void visitInstrumentedStatement(Instrumented statement) {
+        statement.statement.accept(this);
+        for (Variable variable : statement.variables) {
+            infer(variable);
+        }
+        return null;
+    }
+
+    @Override
+    public LoxType visitAssignExpression(Assign expression) {
+        LoxType type = infer(expression.value);
+        if (expression.tracked) slots[expression.slot] = type;
+        return type;
+    }
+
+    @Override
+    public LoxType visitBinaryExpression(Binary expression) {
+        LoxType left = infer(expression.left);
+        LoxType right = infer(expression.right);
+        Token operator = expression.operator;
+        boolean numbers = left == LoxType.NUMBER && right == LoxType.NUMBER;
+        // Known, but not a number.
+        boolean notNumber = (left != LoxType.UNKNOWN && left != LoxType.NUMBER)
+                || (right != LoxType.UNKNOWN && right != LoxType.NUMBER);
+
+        LoxType type;
+        switch (operator.type) {
+            case MINUS:
+            case SLASH:
+                if (notNumber) error(operator, "Operator can only be used with numbers.");
+                type = LoxType.NUMBER;
+                break;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                if (notNumber) error(operator, "Operator can only be used with numbers.");
+                type = LoxType.BOOLEAN;
+                break;
+            case PLUS:
+                if (numbers || (left == LoxType.STRING && right == LoxType.STRING)) {
+                    type = left;
+                } else {
+                    if (left != LoxType.UNKNOWN && right != LoxType.UNKNOWN) {
+                        error(operator, "Cannot add Objects of different types");
+                    }
+                    type = LoxType.UNKNOWN;
+                }
+                break;
+            case STAR:
+                if (numbers) {
+                    type = LoxType.NUMBER;
+                } else if ((left == LoxType.STRING && right == LoxType.NUMBER)
+                        || (left == LoxType.NUMBER && right == LoxType.STRING)) {
+                    type = LoxType.STRING;
+                } else {
+                    boolean fails = left != LoxType.UNKNOWN && right != LoxType.UNKNOWN;
+                    if (fails) error(operator, "Cannot multiply given Objects");
+                    type = LoxType.UNKNOWN;
+                }
+                break;
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                type = LoxType.BOOLEAN;
+                break;
+            default:
+                type = LoxType.UNKNOWN;
+                break;
+        }
+
+        expression.type = type;
+        expression.numeric = numbers;
+        expression.indexed = !notNumber && unboxes(operator.type)
+                && (expression.left instanceof Index || expression.right instanceof Index);
+        return type;
+    }
+
+    /**
+     * Operators Interpreter#indexedBinary can apply to a list element still
+     * held as a double. Division is left out for its zero check.
+     */
+    private static boolean unboxes(TokenType operator) {
+        switch (operator) {
+            case PLUS:
+            case MINUS:
+            case STAR:
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public LoxType visitGroupingExpression(Grouping expression) {
+        return infer(expression.expression);
+    }
+
+    @Override
+    public LoxType visitLiteralExpression(Literal expression) {
+        return LoxType.of(expression.value);
+    }
+
+    @Override
+    public LoxType visitUnaryExpression(Unary expression) {
+        LoxType right = infer(expression.right);
+        LoxType type;
+        if (expression.operator.type == TokenType.BANG) {
+            type = LoxType.BOOLEAN;
+        } else {
+            if (right != LoxType.UNKNOWN && right != LoxType.NUMBER) {
+                error(expression.operator, "Operator can only be used with numbers.");
+            }
+            type = LoxType.NUMBER;
+        }
+        expression.type = type;
+        expression.numeric = right == LoxType.NUMBER;
+        return type;
+    }
+
+    @Override
+    public LoxType visitVariableExpression(Variable expression) {
+        LoxType type = expression.tracked ? slots[expression.slot] : LoxType.UNKNOWN;
+        expression.type = type;
+        return type;
+    }
+
+    @Override
+    public LoxType visitLogicalExpression(Logical expression) {
+        // Either operand may be the result, and the right one may not run.
+        LoxType left = infer(expression.left);
+        LoxType[] before = slots.clone();
+        LoxType right = infer(expression.right);
+        slots = join(before, slots);
+        return left.join(right);
+    }
+
+    @Override
+    public LoxType visitCallExpression(Call expression) {
+        infer(expression.callee);
+        for (Expression argument : expression.arguments) {
+            infer(argument);
+        }
+        return LoxType.UNKNOWN;
+    }
+
+    @Override
+    public LoxType visitGetExpression(Get expression) {
+        infer(expression.object);
+        return LoxType.UNKNOWN;
+    }
+
+    @Override
+    public LoxType visitSetExpression(Expression.Set expression) {
+        infer(expression.object);
+        return infer(expression.value);
+    }
+
+    @Override
+    public LoxType visitThisExpression(This expression) {
+        return LoxType.UNKNOWN;
+    }
+
+    @Override
+    public LoxType visitSuperExpression(Super expression) {
+        return LoxType.UNKNOWN;
+    }
+
+    @Override
+    public LoxType visitListLiteralExpression(ListLiteral expression) {
+        for (Expression element : expression.elements) {
+            infer(element);
+        }
+        return LoxType.UNKNOWN;
+    }
+
+    @Override
+    public LoxType visitIndexExpression(Index expression) {
+        infer(expression.object);
+        infer(expression.index);
+        return LoxType.UNKNOWN;
+    }
+
+    @Override
+    public LoxType visitIndexAssignExpression(IndexAssign expression) {
+        infer(expression.object);
+        infer(expression.index);
+        return infer(expression.value);
+    }
+}
@@ -0,0 +1,76 @@
+package jlox;
+
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The Scanner's SIMD searches, over the source as a char array: a whole
+ * vector of characters (16 with AVX2, 32 with AVX-512) is compared per step,
+ * and whatever is left past the last whole vector is done a character at a
+ * time.
+ *
+ * The Vector API is an incubator module, so this class only loads when the
+ * JVM was started with --add-modules jdk.incubator.vector; see
+ * {@link Scanner#VECTOR_API}. Until C2 compiles these loops they are much
+ * slower than plain ones, so they pay off in a JVM that scans a lot, such as
+ * the daemon, rather than in a single run.
+ */
+final class VectorScan {
+    private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    private VectorScan() {
+    }
+
+    /**
+     * The first index at or after from that holds c, or the end of text.
+     */
+    static int indexOf(char[] text, int from, char c) {
+        int i = from;
+        for (; i <= text.length - LANES; i += LANES) {
+            VectorMask<Short> hits = ShortVector.fromCharArray(SPECIES, text, i).eq((short) c);
+            if (hits.anyTrue()) return i + hits.firstTrue();
+        }
+        for (; i < text.length; i++) {
+            if (text[i] == c) return i;
+        }
+        return text.length;
+    }
+
+    /**
+     * The first index at or after from that is not a space, tab, carriage
+     * return or newline, or the end of text.
+     */
+    static int skipWhitespace(char[] text, int from) {
+        int i = from;
+        for (; i <= text.length - LANES; i += LANES) {
+            ShortVector chunk = ShortVector.fromCharArray(SPECIES, text, i);
+            VectorMask<Short> blank = chunk.eq((short) ' ')
+                    .or(chunk.eq((short) '\t'))
+                    .or(chunk.eq((short) '\r'))
+                    .or(chunk.eq((short) '\n'));
+            if (!blank.allTrue()) return i + blank.not().firstTrue();
+        }
+        for (; i < text.length; i++) {
+            char c = text[i];
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') return i;
+        }
+        return text.length;
+    }
+
+    /**
+     * How many newlines text holds from from up to, not including, to.
+     */
+    static int countNewlines(char[] text, int from, int to) {
+        int count = 0;
+        int i = from;
+        for (; i <= to - LANES; i += LANES) {
+            count += ShortVector.fromCharArray(SPECIES, text, i).eq((short) '\n').trueCount();
+        }
+        for (; i < to; i++) {
+            if (text[i] == '\n') count++;
+        }
+        return count;
+    }
+}
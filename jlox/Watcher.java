@@ -0,0 +1,244 @@
+package jlox;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a script and then runs it again each time its file changes, keeping
+ * the tokens and top-level statements of the last version in between. An
+ * edit rescans only the text from just before it to the first token after it
+ * that lines up with an old one; the old tokens past that point are moved to
+ * their new lines and kept. Top-level statements whose tokens all survived
+ * are reused as they are, with no parsing or resolving, and only the ones
+ * the edit touched are parsed again.
+ *
+ * This works because top-level statements share nothing but globals: each
+ * resolves to the same slots on its own as in the whole script.
+ */
+final class Watcher {
+    /**
+     * A top-level statement from the last version, with what it took to
+     * resolve it.
+     */
+    private static final class Entry {
+        final Statement statement;
+        final Token first;
+        final Token last;
+        final int length;
+        int slots;
+
+        Entry(Statement statement, Token first, Token last, int length) {
+            this.statement = statement;
+            this.first = first;
+            this.last = last;
+            this.length = length;
+        }
+    }
+
+    private final Path path;
+    private final boolean lazy;
+    private final boolean strict;
+
+    private String source = null;
+    // Null when the next version has to be scanned from scratch.
+    private List<Token> tokens = null;
+    // The statements of the last version, by their first token.
+    private Map<Token, Entry> entries = new IdentityHashMap<>();
+    // The tokens the last scan produced afresh; nothing in here is reused.
+    private int windowStart;
+    private int windowEnd;
+
+    Watcher(Path path, boolean lazy, boolean strict) {
+        this.path = path;
+        this.lazy = lazy;
+        this.strict = strict;
+    }
+
+    void watch() throws IOException {
+        run();
+        Path directory = path.toAbsolutePath().getParent();
+        try (WatchService service = FileSystems.getDefault().newWatchService()) {
+            // Editors that save by renaming a new file over the old one
+            // show up as a create rather than a modify.
+            directory.register(service, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || path.getFileName().equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                if (changed) run();
+                if (!key.reset()) return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() throws IOException {
+        String updated = new String(Files.readAllBytes(path), Charset.defaultCharset());
+        if (updated.equals(source)) return;
+
+        long start = System.nanoTime();
+        Lox.hadError = false;
+        Lox.hadRuntimeError = false;
+        int scanned = tokens == null ? scan(updated) : rescan(updated);
+        source = updated;
+        List<Token> current = tokens;
+        // A scan error drops text that is not in any token, so the next
+        // version starts over to report it again.
+        boolean errors = Lox.hadError;
+        if (errors) tokens = null;
+
+        RecursiveParser parser = new RecursiveParser(current, lazy, strict);
+        Map<Token, Entry> kept = new IdentityHashMap<>();
+        List<Entry> parsed = new ArrayList<>();
+        List<Statement> statements = new ArrayList<>();
+        int index = 0;
+        while (current.get(index).type != TokenType.EOF) {
+            Entry entry = entries.get(current.get(index));
+            if (entry != null && unchanged(current, entry, index)) {
+                kept.put(current.get(index), entry);
+            } else {
+                Statement statement = parser.parseDeclaration(index);
+                int end = parser.position();
+                entry = new Entry(statement, current.get(index), current.get(end - 1), end - index);
+                parsed.add(entry);
+            }
+            statements.add(entry.statement);
+            index += entry.length;
+        }
+        errors |= Lox.hadError;
+
+        // As with a whole script, nothing is resolved once there is a syntax
+        // error anywhere. Statements with errors are not kept, so they are
+        // parsed again and their errors reported again next time.
+        if (!errors) {
+            for (Entry entry : parsed) {
+                Lox.hadError = false;
+                entry.slots = new Resolver().resolve(Collections.singletonList(entry.statement));
+                if (!Lox.hadError) kept.put(entry.first, entry);
+                errors |= Lox.hadError;
+            }
+        }
+        entries = kept;
+        Lox.hadError = errors;
+
+        int slots = 0;
+        for (Entry entry : kept.values()) {
+            slots = Math.max(slots, entry.slots);
+        }
+        System.err.println(String.format("[watch] rescanned %d tokens, reparsed %d of %d statements in %.1f ms",
+                scanned, parsed.size(), statements.size(), (System.nanoTime() - start) / 1e6));
+        if (!errors) {
+            new Interpreter().interpret(statements, slots, false);
+        }
+    }
+
+    /**
+     * Whether a statement's tokens all came through the last scan untouched,
+     * along with the token after it, which the parser looked at to see
+     * whether an if has an else.
+     */
+    private boolean unchanged(List<Token> current, Entry entry, int index) {
+        int end = index + entry.length;
+        if (end >= current.size() || current.get(end - 1) != entry.last) return false;
+        return end < windowStart || index >= windowEnd;
+    }
+
+    private int scan(String updated) {
+        tokens = new Scanner(updated).scanTokens();
+        entries.clear();
+        windowStart = 0;
+        windowEnd = tokens.size();
+        return tokens.size();
+    }
+
+    private int rescan(String updated) {
+        int limit = Math.min(source.length(), updated.length());
+        int prefix = 0;
+        while (prefix < limit && source.charAt(prefix) == updated.charAt(prefix)) prefix++;
+        int suffix = 0;
+        while (suffix < limit - prefix
+                && source.charAt(source.length() - 1 - suffix) == updated.charAt(updated.length() - 1 - suffix)) {
+            suffix++;
+        }
+        int shift = updated.length() - source.length();
+        int editEnd = updated.length() - suffix;
+
+        // Start one token before the first one the edit reaches, since a
+        // number looks two characters ahead to find its decimal point.
+        int first = Math.max(0, firstEndingAtOrAfter(prefix) - 1);
+        Scanner scanner = first == 0
+                ? new Scanner(updated, 0, 1)
+                : new Scanner(updated, tokens.get(first - 1).tokenPosition, tokens.get(first - 1).line);
+
+        // Scan until a token past the edit starts where an old token did:
+        // the scanner is between tokens there in both versions and the text
+        // after it is the same, so the old tokens from there on still hold.
+        // EOF always lines up, so this ends.
+        List<Token> window = new ArrayList<>();
+        int resume = first;
+        int lines;
+        while (true) {
+            Token token = scanner.nextToken();
+            int tokenStart = start(token);
+            if (tokenStart >= editEnd) {
+                int oldStart = tokenStart - shift;
+                while (start(tokens.get(resume)) < oldStart) resume++;
+                Token old = tokens.get(resume);
+                if (start(old) == oldStart && old.type == token.type && old.lexeme.equals(token.lexeme)) {
+                    lines = token.line - old.line;
+                    break;
+                }
+            }
+            window.add(token);
+        }
+
+        List<Token> updatedTokens = new ArrayList<>(first + window.size() + tokens.size() - resume);
+        updatedTokens.addAll(tokens.subList(0, first));
+        updatedTokens.addAll(window);
+        for (int i = resume; i < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            if (lines != 0 || shift != 0) token.shift(lines, shift);
+            updatedTokens.add(token);
+        }
+        tokens = updatedTokens;
+        windowStart = first;
+        windowEnd = first + window.size();
+        return window.size();
+    }
+
+    private int firstEndingAtOrAfter(int position) {
+        int low = 0;
+        int high = tokens.size() - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (tokens.get(middle).tokenPosition < position) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int start(Token token) {
+        return token.tokenPosition - token.lexeme.length();
+    }
+}
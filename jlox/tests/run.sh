@@ -0,0 +1,92 @@
+#!/bin/sh
+# Runs every tests/*.lox script and compares what it prints with the
+# expected output next to it: name.out for stdout and name.err for stderr,
+# which is expected to be empty when there is no name.err.
+#
+# Lines at the top of a script can change how it is run:
+#   // args: OPTIONS    run it with these options; with several args lines it
+#                       runs once per line, and every run must print the same
+#   // prelude: FILE    run it twice with --prelude=FILE, first saving the
+#                       prelude's snapshot and then loading it
+#   // watch: FILE      run it with --watch, then copy FILE over it once the
+#                       first run is done and check what the second run prints
+#
+# Usage: sh tests/run.sh [java command line for the interpreter]
+
+LOX=${*:-java -jar Lox.jar}
+DIR=$(dirname "$0")
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+
+passed=0
+failed=0
+
+directive() {
+    sed -n "s|^// $1: *||p" "$2"
+}
+
+# Check the output of the last run against the expected files.
+check() {
+    name=$1
+    description=$2
+    expected_err=$DIR/$name.err
+    [ -f "$expected_err" ] || expected_err=/dev/null
+    if diff -u "$DIR/$name.out" "$WORK/out" > "$WORK/diff" \
+            && diff -u "$expected_err" "$WORK/err" >> "$WORK/diff"; then
+        passed=$((passed + 1))
+    else
+        failed=$((failed + 1))
+        echo "FAIL $name$description"
+        cat "$WORK/diff"
+    fi
+}
+
+# Wait for the watched run to print its nth [watch] line and its output.
+await() {
+    tries=0
+    while [ "$(grep -c '^\[watch\]' "$WORK/raw")" -lt "$1" ] && [ $tries -lt 100 ]; do
+        sleep 0.1
+        tries=$((tries + 1))
+    done
+    sleep 1
+}
+
+for script in "$DIR"/*.lox; do
+    name=$(basename "$script" .lox)
+    prelude=$(directive prelude "$script")
+    watch=$(directive watch "$script")
+
+    if [ -n "$prelude" ]; then
+        rm -f "$DIR/$prelude.snapshot"
+        for run in saving loading; do
+            $LOX --prelude="$DIR/$prelude" "$script" > "$WORK/out" 2> "$WORK/err"
+            check "$name" " ($run the snapshot)"
+        done
+        rm -f "$DIR/$prelude.snapshot"
+    elif [ -n "$watch" ]; then
+        # The watcher's timings differ from run to run.
+        cp "$script" "$WORK/$name.lox"
+        $LOX --watch "$WORK/$name.lox" > "$WORK/out" 2> "$WORK/raw" &
+        pid=$!
+        await 1
+        # Replaced in one step, as editors save, so the watcher never sees
+        # the file half written.
+        cp "$DIR/$watch" "$WORK/$name.new"
+        mv "$WORK/$name.new" "$WORK/$name.lox"
+        await 2
+        kill $pid
+        wait $pid 2> /dev/null
+        sed 's/in [0-9.]* ms$/in N ms/' "$WORK/raw" > "$WORK/err"
+        check "$name" " (watching)"
+    else
+        directive args "$script" > "$WORK/args"
+        [ -s "$WORK/args" ] || echo > "$WORK/args"
+        while read -r options; do
+            $LOX $options "$script" > "$WORK/out" 2> "$WORK/err" < /dev/null
+            check "$name" "${options:+ ($options)}"
+        done < "$WORK/args"
+    fi
+done
+
+echo "$passed passed, $failed failed"
+[ $failed -eq 0 ]
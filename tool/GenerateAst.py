@@ -1,113 +1,238 @@
 import os
 
 class GenerateAst:
+    """
+    Writes an AST class with a nested Visitor and a node class per entry of
+    ast. An entry is (class_type, fields) or (class_type, fields, annotations):
+    fields are the final constructor parameters, and annotations are mutable
+    fields that later passes fill in. Annotations come in groups separated by
+    a blank line; in a group, a line starting with // is a comment and any
+    other is a declaration, with its initial value if it has one.
+    """
+    INDENT = "    "
+
     def __init__(self, relative_path, class_name, ast, imports=[]):
         self.path = os.path.abspath(relative_path)
-        self.define_ast = ast
+        self.define_ast = [entry if len(entry) == 3 else (*entry, []) for entry in ast]
         self.class_name = class_name
         self.imports = imports
+        self.lines = []
 
     def create_file(self):
         file_path = os.path.join(self.path, f"{self.class_name}.java")
 
-        with open(file_path, "w+") as f:
-            self.write_package(f, "jlox")
-            self.write_imports(f)
-            with self.CurlyBraceWrapper(f, self.generate_class_header(f, "abstract class", self.class_name)) as _:
-                with self.CurlyBraceWrapper(f, self.generate_class_header(f, "interface", "Visitor<R>")) as _:
-                    for class_type, fields in self.define_ast:
-                        self.define_visitor(f, class_type)                
-                for class_type, fields in self.define_ast:
-                    with self.CurlyBraceWrapper(f, self.generate_class_header(f, "static class", class_type, self.class_name)) as _:
-                        self.create_constructor(f, class_type, fields)
-                        self.accept_override(f, class_type)
-                        self.declare_fields(f, fields)
-                self.define_abstract_accept(f)
-                
-    def accept_override(self, f, class_type):
-        with self.CurlyBraceWrapper(f, "<R> R accept(Visitor<R> visitor)") as _:
-            f.write(f"return visitor.visit{class_type}{self.class_name}(this);")
-        
-    def define_abstract_accept(self, f):
-        f.write("abstract <R> R accept(Visitor<R> visitor);")
-        
-    def define_visitor(self, f, class_type):
-        f.write(f" R visit{class_type}{self.class_name} ({class_type} {self.class_name.lower()});")
-    
-    def declare_fields(self, f, fields):
+        self.lines = []
+        self.write_package("jlox")
+        self.write_imports()
+        with self.CurlyBraceWrapper(self, 0, self.generate_class_header("abstract class", self.class_name)) as _:
+            with self.CurlyBraceWrapper(self, 1, self.generate_class_header("interface", "Visitor<R>")) as _:
+                for i, (class_type, fields, annotations) in enumerate(self.define_ast):
+                    if i != 0:
+                        self.blank()
+                    self.define_visitor(class_type)
+            for class_type, fields, annotations in self.define_ast:
+                self.blank()
+                with self.CurlyBraceWrapper(self, 1, self.generate_class_header("static class", class_type, self.class_name)) as _:
+                    self.create_constructor(class_type, fields)
+                    self.blank()
+                    self.accept_override(class_type)
+                    self.blank()
+                    self.declare_fields(fields)
+                    self.declare_annotations(annotations)
+            self.blank()
+            self.define_abstract_accept()
+
+        with open(file_path, "w") as f:
+            f.write("\n".join(self.lines))
+
+    def write(self, depth, line):
+        self.lines.append(f"{self.INDENT * depth}{line}")
+
+    def blank(self):
+        self.lines.append("")
+
+    def accept_override(self, class_type):
+        with self.CurlyBraceWrapper(self, 2, "<R> R accept(Visitor<R> visitor)") as _:
+            self.write(3, f"return visitor.visit{class_type}{self.class_name}(this);")
+
+    def define_abstract_accept(self):
+        self.write(1, "abstract <R> R accept(Visitor<R> visitor);")
+
+    def define_visitor(self, class_type):
+        self.write(2, f"R visit{class_type}{self.class_name}({class_type} {self.class_name.lower()});")
+
+    def declare_fields(self, fields):
         for field_type, name in fields:
-            f.write(f"final {field_type} {name};")
-        
-    def create_constructor(self, f, class_type, fields):
-        with self.ParenthesisWrapper(f, prefix=class_type) as _:
-            for i, field in enumerate(fields):
-                field_type, name = field
-                f.write(f"{field_type} {name}")
-                if i != len(fields) - 1:
-                    f.write(", ")
-
-        with self.CurlyBraceWrapper(f) as _:
-            for field in fields:
-                field_type, name = field
-                f.write(f"this.{name} = {name};")
-
-    def write_imports(self, f):
+            self.write(2, f"final {field_type} {name};")
+
+    def declare_annotations(self, annotations):
+        for group in annotations:
+            self.blank()
+            for line in group:
+                self.write(2, line if line.startswith("//") else f"{line};")
+
+    def create_constructor(self, class_type, fields):
+        parameters = ", ".join(f"{field_type} {name}" for field_type, name in fields)
+        with self.CurlyBraceWrapper(self, 2, f"{class_type}({parameters})") as _:
+            for field_type, name in fields:
+                self.write(3, f"this.{name} = {name};")
+
+    def write_imports(self):
         for imp in self.imports:
-            f.write(f"import {imp};")
-            
-            
-    @staticmethod
-    def write_package(f, package_name):
-        f.write(f"package {package_name};")
+            self.write(0, f"import {imp};")
+        if self.imports:
+            self.blank()
+
+    def write_package(self, package_name):
+        self.write(0, f"package {package_name};")
+        self.blank()
 
     @staticmethod
-    def generate_class_header(f, class_type, class_name, extends=None):
+    def generate_class_header(class_type, class_name, extends=None):
         def extensions():
             if extends:
                 return f" extends {extends}"
             return None
-        return (f"{class_type} {class_name}{extensions() or ' '}")
+        return (f"{class_type} {class_name}{extensions() or ''}")
 
     class CurlyBraceWrapper:
-        def __init__(self, file_writer, clause_header=""):
-            self.file = file_writer
+        def __init__(self, generator, depth, clause_header=""):
+            self.generator = generator
+            self.depth = depth
             self.clause_header = clause_header
         def __enter__(self):
-            self.file.write(f"{self.clause_header}{'{'}")
-        def __exit__(self, exc_type, exc_value, tb):
-            self.file.write("}")
-
-    class ParenthesisWrapper:
-        def __init__(self, file_writer, prefix = '', postfix = ''):
-            self.file = file_writer
-            self.prefix = prefix
-            self.postfix = postfix
-        def __enter__(self):
-            self.file.write(f"{self.prefix}(")
+            self.generator.write(self.depth, f"{self.clause_header} {'{'}")
         def __exit__(self, exc_type, exc_value, tb):
-            self.file.write(f"){self.postfix}")
+            self.generator.write(self.depth, "}")
 
 if __name__ == "__main__":
+    resolved_variable = [
+        "// Where the Resolver found the variable: a slot in the current frame,",
+        "// or in the declaring function's frame if linked, or an index into the",
+        "// running closure's captures; both -1 for a global. Boxed variables",
+        "// hold a Box in place of their value.",
+        "int slot = -1",
+        "int capture = -1",
+        "boolean linked",
+        "boolean boxed",
+        "Globals.Cell cell",
+    ]
+
     expression_ast_props = [
-            ("Assign", [("Token", "name"), ("jlox.Expression", "value")]),
-            ("Binary", [("Expression", "left"), ("Token", "operator"), ("Expression", "right")]),
+            ("Assign", [("Token", "name"), ("jlox.Expression", "value")], [
+                resolved_variable,
+                [
+                    "// Set by the Resolver when only the variable's own function writes",
+                    "// it, so TypeInference can follow its type through that function.",
+                    "boolean tracked",
+                ],
+            ]),
+            ("Binary", [("Expression", "left"), ("Token", "operator"), ("Expression", "right")], [[
+                "// Set by TypeInference: the type of the result, whether both operands",
+                "// are known to be numbers so no check is needed, and whether an",
+                "// operand is a list element that can be read without boxing it.",
+                "LoxType type = LoxType.UNKNOWN",
+                "boolean numeric",
+                "boolean indexed",
+            ]]),
             ("Grouping", [("Expression", "expression")]),
             ("Literal", [("Object", "value")]),
-            ("Unary", [("Token", "operator"), ("Expression", "right")]),
-            ("Variable", [("Token", "name")]),
+            ("Unary", [("Token", "operator"), ("Expression", "right")], [[
+                "// Set by TypeInference, as for Binary.",
+                "LoxType type = LoxType.UNKNOWN",
+                "boolean numeric",
+            ]]),
+            ("Variable", [("Token", "name")], [
+                resolved_variable,
+                [
+                    "// Set by the Resolver as for Assign, then by TypeInference to the",
+                    "// type the variable is known to hold here.",
+                    "boolean tracked",
+                    "LoxType type = LoxType.UNKNOWN",
+                ],
+            ]),
             ("Logical", [("Expression", "left"),("Token", "operator"),("Expression", "right")]),
+            ("Call", [("Expression", "callee"), ("Token", "paren"), ("List<Expression>", "arguments")], [[
+                "// Set by the Resolver when the callee is a function that never",
+                "// escapes, which is called without a function object.",
+                "Statement.Function direct",
+                "boolean fromDeclarer",
+            ]]),
+            ("Get", [("Expression", "object"), ("Token", "name")], [["InlineCache cache = InlineCache.EMPTY"]]),
+            ("Set", [("Expression", "object"), ("Token", "name"), ("Expression", "value")], [["InlineCache cache = InlineCache.EMPTY"]]),
+            ("This", [("Token", "keyword")], [[
+                "// Resolved like a local variable; this is always slot 0 of a method.",
+                "int slot = -1",
+                "int capture = -1",
+                "boolean linked",
+                "boolean boxed",
+            ]]),
+            ("Super", [("Token", "keyword"), ("Token", "method")], [[
+                "// Created by the Resolver to read the superclass and the receiver.",
+                "Variable superclass",
+                "This receiver",
+            ]]),
+            ("ListLiteral", [("Token", "bracket"), ("List<Expression>", "elements")]),
+            ("Index", [("Expression", "object"), ("Token", "bracket"), ("Expression", "index")]),
+            ("IndexAssign", [("Expression", "object"), ("Token", "bracket"), ("Expression", "index"), ("Expression", "value")]),
         ]
-    genAst = GenerateAst("jlox", "Expression", expression_ast_props)
+    genAst = GenerateAst("jlox", "Expression", expression_ast_props, ["java.util.List"])
     genAst.create_file()
-    
+
     statement_ast_props = [
         ("Expression", [("jlox.Expression", "expression")]),
         ("Print", [("jlox.Expression", "expression")]),
-        ("Var", [("Token", "name"), ("jlox.Expression", "initializer")]),       
+        ("Var", [("Token", "name"), ("jlox.Expression", "initializer")], [[
+            "// Frame slot assigned by the Resolver, or -1 for a global.",
+            "int slot = -1",
+            "boolean boxed",
+            "Globals.Cell cell",
+        ]]),
         ("Block", [("List<Statement>", "statements")]),
         ("If", [("jlox.Expression", "condition"), ("Statement", "thenBranch"), ("Statement", "elseBranch")]),
-        ("While", [("jlox.Expression", "condition"), ("Statement", "body")]),
+        ("While", [("Token", "keyword"), ("jlox.Expression", "condition"), ("Statement", "body")], [[
+            "// Iterations run so far, and the compiled loop once there were enough.",
+            "int backEdges",
+            "LoopCompiler.Step compiled",
+        ]]),
+        ("Function", [("Token", "name"), ("List<Token>", "params"), ("List<Statement>", "body")], [[
+            "// Set by the Resolver: where the function is bound (-1 for a global),",
+            "// how many slots a call needs for parameters and locals, which",
+            "// variables a closure copies when it is created, and whether the",
+            "// function escapes its declaring function at all.",
+            "int slot = -1",
+            "int frameSize",
+            "boolean boxed",
+            "int[] boxedParams = new int[0]",
+            "LoxFunction.Capture[] captures = new LoxFunction.Capture[0]",
+            "boolean escapes = true",
+            "boolean method",
+            "boolean initializer",
+            "Globals.Cell cell",
+            "LoxFunction function",
+        ]]),
+        ("Return", [("Token", "keyword"), ("jlox.Expression", "value")]),
+        ("Class", [("Token", "name"), ("jlox.Expression.Variable", "superclass"), ("List<Statement.Function>", "methods")], [[
+            "// Set by the Resolver: where the class is bound (-1 for a global) and",
+            "// the slot that holds the superclass while its methods are created.",
+            "int slot = -1",
+            "int superSlot = -1",
+            "boolean boxed",
+            "Globals.Cell cell",
+        ]]),
+        ("ParallelFor", [("Token", "keyword"), ("jlox.Expression", "from"), ("jlox.Expression", "to"), ("List<Token>", "operators"), ("List<jlox.Expression.Variable>", "targets"), ("Statement.Function", "body")]),
+        ("Spawn", [("Token", "keyword"), ("jlox.Expression.Call", "call"), ("Statement.Function", "body")]),
+        ("LazyBlock", [("Token", "brace"), ("List<Token>", "tokens")], [[
+            "// Set by the Resolver: what it needs to resolve the body later. The",
+            "// body itself is parsed the first time the block runs.",
+            "Resolver.Deferred deferred",
+            "volatile List<Statement> statements",
+        ], [
+            "// Set by a strict parser, which has parsed the body already: its",
+            "// statements, taken by the first run instead of parsing it again.",
+            "List<Statement> parsed",
+        ]]),
+        ("Instrumented", [("Statement", "statement"), ("int", "line"), ("Instrumentation.Probe", "probe"), ("List<jlox.Expression.Variable>", "variables")]),
     ]
     genAst = GenerateAst("jlox", "Statement", statement_ast_props, ["java.util.List"])
     genAst.create_file()
-
@@ -0,0 +1,55 @@
+#!/usr/bin/env python3
+# Runs a Lox script on a running `jlox --daemon` and exits with its exit
+# code. Pass - to send the script on stdin. See jlox/Daemon.java for the
+# protocol.
+import getpass
+import os
+import socket
+import struct
+import sys
+
+
+def socket_path():
+    return os.environ.get("JLOX_SOCKET", f"/tmp/jlox-{getpass.getuser()}.sock")
+
+
+def read_exactly(stream, length):
+    data = stream.read(length)
+    if len(data) < length:
+        sys.stderr.write("jloxc: the daemon hung up.\n")
+        sys.exit(70)
+    return data
+
+
+def main(args):
+    if len(args) != 1:
+        sys.stderr.write("Usage: jloxc.py script | jloxc.py -\n")
+        return 64
+
+    if args[0] == "-":
+        kind, payload = b"S", sys.stdin.buffer.read()
+    else:
+        kind, payload = b"P", os.path.abspath(args[0]).encode("utf-8")
+
+    path = socket_path()
+    client = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
+    try:
+        client.connect(path)
+    except OSError:
+        sys.stderr.write(f"jloxc: no daemon is listening on {path}; start one with jlox --daemon.\n")
+        return 69
+    client.sendall(kind + struct.pack(">i", len(payload)) + payload)
+
+    replies = client.makefile("rb")
+    outputs = {b"O": sys.stdout.buffer, b"E": sys.stderr.buffer}
+    while True:
+        frame, length = struct.unpack(">ci", read_exactly(replies, 5))
+        data = read_exactly(replies, length)
+        if frame == b"X":
+            return struct.unpack(">i", data)[0]
+        outputs[frame].write(data)
+        outputs[frame].flush()
+
+
+if __name__ == "__main__":
+    sys.exit(main(sys.argv[1:]))